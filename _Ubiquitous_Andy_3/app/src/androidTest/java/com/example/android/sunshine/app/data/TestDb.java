@@ -15,12 +15,20 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TestDb extends AndroidTestCase {
 
@@ -55,6 +63,8 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -177,6 +187,130 @@ public class TestDb extends AndroidTestCase {
     }
 
 
+    /*
+        Takes a version 5 database, which lacks the location-first weather index, through
+        onUpgrade() and checks that the index is added without losing the stored forecast.
+     */
+    public void testUpgradeKeepsData() {
+        long locationRowId = insertLocation();
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                TestUtilities.createWeatherValues(locationRowId));
+        db.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        db.setVersion(5);
+        dbHelper.close();
+
+        dbHelper = new WeatherDbHelper(mContext);
+        db = dbHelper.getWritableDatabase();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE});
+        assertTrue("Error: The upgrade didn't add the weather index", c.moveToFirst());
+        c.close();
+        c = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        assertEquals("Error: The upgrade lost the stored weather", 1, c.getCount());
+        c.close();
+        dbHelper.close();
+    }
+
+    /*
+        Runs simulated syncs, each one transaction rewriting 14 days for 20 locations, while two
+        threads run the forecast query, first with the rollback journal and then with the
+        write-ahead log.  Look for "Contention benchmark" in the log for the readers' p99.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testContentionBenchmark() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        final int locationCount = 20;
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long[] locationIds = new long[locationCount];
+        for (int i = 0; i < locationCount; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "contention" + i);
+            locationIds[i] = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+        }
+
+        db.disableWriteAheadLogging();
+        long rollbackP99 = runContention(db, locationIds);
+        db.enableWriteAheadLogging();
+        long walP99 = runContention(db, locationIds);
+        Log.i(LOG_TAG, "Contention benchmark, reader p99: rollback journal " + rollbackP99
+                + "us, write-ahead log " + walP99 + "us");
+        dbHelper.close();
+    }
+
+    /**
+     * @return the readers' p99 latency in microseconds.
+     */
+    private long runContention(final SQLiteDatabase db, final long[] locationIds)
+            throws InterruptedException {
+        final int syncs = 20;
+        final int days = 14;
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int sync = 0; sync < syncs; sync++) {
+                    db.beginTransaction();
+                    try {
+                        for (long locationId : locationIds) {
+                            for (int day = 0; day < days; day++) {
+                                ContentValues weather = TestUtilities.createWeatherValues(locationId);
+                                weather.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                                        TestUtilities.TEST_DATE + day * 24L * 60 * 60 * 1000);
+                                weather.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, sync);
+                                db.replace(WeatherContract.WeatherEntry.TABLE_NAME, null, weather);
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    SystemClock.sleep(20);
+                }
+                done.set(true);
+            }
+        };
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            final int reader = i;
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    int query = reader;
+                    while (!done.get()) {
+                        long start = System.nanoTime();
+                        Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(
+                                db, null, WeatherProvider.sLocationIdSelection,
+                                new String[]{Long.toString(locationIds[query++ % locationIds.length])},
+                                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                        cursor.getCount();
+                        cursor.close();
+                        latencies.add((System.nanoTime() - start) / 1000);
+                    }
+                }
+            };
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertFalse("Error: The readers never ran", latencies.isEmpty());
+        Collections.sort(latencies);
+        return latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100));
+    }
+
     /*
         Students: This is a helper method for the testWeatherTable quiz. You can move your
         code from testLocationTable to here so that you can call this code from both
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the provider keeps the location cache in step with the location table, and
+    that the forecast queries still find their rows through it.
+ */
+public class TestLocationCache extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testInsertAndDelete() {
+        LocationCache cache = LocationCache.getInstance(mContext);
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, locationValues));
+
+        LocationCache.Entry entry = cache.get(TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: an inserted location wasn't cached", entry);
+        assertEquals(locationId, entry.id);
+        assertEquals("North Pole", entry.cityName);
+        assertEquals(64.7488, entry.latitude);
+
+        // A new process starts from what was persisted
+        assertEquals(locationId, new LocationCache(mContext).getId(TestUtilities.TEST_LOCATION));
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals("Error: a deleted location is still cached",
+                -1, cache.getId(TestUtilities.TEST_LOCATION));
+        assertEquals(-1, new LocationCache(mContext).getId(TestUtilities.TEST_LOCATION));
+    }
+
+    public void testQueriesByCachedId() {
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locationId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Locations the cache has never seen, like one written straight to the database, are
+        // looked up there
+        LocationCache.getInstance(mContext).clear();
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(locationId,
+                LocationCache.getInstance(mContext).getId(TestUtilities.TEST_LOCATION));
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("no-such-location"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
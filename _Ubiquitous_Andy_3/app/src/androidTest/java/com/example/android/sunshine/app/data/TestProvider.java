@@ -24,9 +24,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -56,6 +60,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -512,4 +521,460 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Bulk inserting the same forecast twice shouldn't write anything the second time, and a
+        single changed day should be the only row written, keeping its _id.
+     */
+    public void testBulkInsertSkipsUnchangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToFirst());
+        long firstRowId = cursor.getLong(0);
+        cursor.close();
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: unchanged rows were written again", 0, insertCount);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+        assertEquals("Error: only the changed row should have been written", 1, insertCount);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the changed row was replaced instead of updated", firstRowId, cursor.getLong(0));
+        assertEquals(99.0, cursor.getDouble(1));
+        cursor.close();
+    }
+
+    /*
+        Changing one day of one location should tell the observers of that location and that
+        day, and leave another location's list and the location's other days alone.
+     */
+    public void testNotificationsAreScoped() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues));
+        ContentValues otherValues = TestUtilities.createNorthPoleLocationValues();
+        otherValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        long otherRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherValues));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(otherRowId));
+
+        // Registered for descendants, as a loader's cursor is
+        TestUtilities.TestContentObserver listObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, listObserver);
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), true, dayObserver);
+        TestUtilities.TestContentObserver otherDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + 1000 * 60 * 60 * 24), true, otherDayObserver);
+        TestUtilities.TestContentObserver otherLocationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("99706"), true, otherLocationObserver);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues));
+
+        dayObserver.waitForNotificationOrFail();
+        listObserver.waitForNotificationOrFail();
+        // Give a stray notification the time to arrive
+        SystemClock.sleep(500);
+        assertFalse("Error: the observer of an unchanged day was notified",
+                otherDayObserver.mContentChanged);
+        assertFalse("Error: the observer of another location was notified",
+                otherLocationObserver.mContentChanged);
+
+        mContext.getContentResolver().unregisterContentObserver(listObserver);
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherLocationObserver);
+        otherDayObserver.mHT.quit();
+        otherLocationObserver.mHT.quit();
+    }
+
+    /*
+        A sync applied through METHOD_APPLY_SYNC should create the location, store its weather
+        against it and notify once.  Applying the same sync again should change nothing, and a
+        new validator alone should be stored without counting as a change.
+     */
+    public void testApplySync() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        locationValues.put(LocationEntry.COLUMN_ETAG, "\"north-pole\"");
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, createApplySyncExtras(locationValues));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        long[] locationIds = result.getLongArray(WeatherContract.EXTRA_LOCATION_IDS);
+        assertEquals(1, locationIds.length);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                result.getLongArray(WeatherContract.EXTRA_CHANGED_DATES).length);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationIds[0])}, null);
+        TestUtilities.validateCursor("testApplySync. Error validating LocationEntry.",
+                cursor, locationValues);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationIds[0])}, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, createApplySyncExtras(locationValues));
+        assertEquals(locationIds[0], result.getLongArray(WeatherContract.EXTRA_LOCATION_IDS)[0]);
+        assertEquals("Error: applying the same sync twice changed rows",
+                0, result.getLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS).length);
+
+        // A new validator for the same forecast is stored, but isn't a change
+        locationValues.put(LocationEntry.COLUMN_ETAG, "\"north-pole-2\"");
+        long generation = QueryCache.getInstance().getGeneration();
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, createApplySyncExtras(locationValues));
+        assertEquals("Error: a new validator alone invalidated the query cache",
+                generation, QueryCache.getInstance().getGeneration());
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationIds[0])}, null);
+        TestUtilities.validateCursor("testApplySync. Error validating the new validator.",
+                cursor, locationValues);
+    }
+
+    /*
+        Values with more significant digits than the cursor window prints, like the coordinates
+        OWM sends, should compare equal to what is stored: applying them again writes nothing
+        and tells nobody.
+     */
+    public void testApplySyncComparesFullPrecision() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, 37.38605);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, -122.0838);
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, createPreciseApplySyncExtras(locationValues));
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, observer);
+        long generation = QueryCache.getInstance().getGeneration();
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, createPreciseApplySyncExtras(locationValues));
+        // Give a stray notification the time to arrive
+        SystemClock.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        observer.mHT.quit();
+
+        assertEquals("Error: unchanged rows were written again",
+                0, result.getLongArray(WeatherContract.EXTRA_CHANGED_DATES).length);
+        assertEquals("Error: an unchanged location invalidated the query cache",
+                generation, QueryCache.getInstance().getGeneration());
+        assertFalse("Error: observers were told about a sync that changed nothing",
+                observer.mContentChanged);
+    }
+
+    private static Bundle createPreciseApplySyncExtras(ContentValues locationValues) {
+        Bundle extras = createApplySyncExtras(locationValues);
+        for (Parcelable value : extras.getParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES)) {
+            ((ContentValues) value).put(WeatherEntry.COLUMN_PRESSURE, 1013.2567);
+        }
+        return extras;
+    }
+
+    /*
+        A sync whose deadline has passed by the time it would commit is rolled back whole.
+     */
+    public void testApplySyncPastDeadline() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Bundle extras = createApplySyncExtras(TestUtilities.createNorthPoleLocationValues());
+        extras.putLong(WeatherContract.EXTRA_DEADLINE, SystemClock.elapsedRealtime() - 1);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        assertTrue(result.getBoolean(WeatherContract.EXTRA_DEADLINE_EXCEEDED));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a sync past its deadline stored a location", 0, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a sync past its deadline stored weather", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    static Bundle createApplySyncExtras(ContentValues locationValues) {
+        String locationSetting = locationValues.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues value : weatherValues) {
+            value.remove(WeatherEntry.COLUMN_LOC_KEY);
+            value.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_LOCATIONS,
+                new ContentValues[]{new ContentValues(locationValues)});
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, weatherValues);
+        return extras;
+    }
+
+    /*
+        Hourly rows applied with a sync come back from a range query in hour order, only for the
+        hours asked for, and the retention delete drops the ones before the cutoff.
+     */
+    public void testApplySyncHourly() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        String locationSetting = locationValues.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        long firstHour = HourlyEntry.getEpochHour(TestUtilities.TEST_DATE);
+        Bundle extras = createApplySyncExtras(locationValues);
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_VALUES,
+                createHourlyValues(locationSetting, firstHour, 8));
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+
+        // The 3rd to 5th slots: hours 6 to 14 inclusive
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithRange(locationSetting,
+                        HourlyEntry.getMillisFromEpochHour(firstHour + 6),
+                        HourlyEntry.getMillisFromEpochHour(firstHour + 15)),
+                new String[]{HourlyEntry.COLUMN_EPOCH_HOUR, HourlyEntry.COLUMN_TEMP},
+                null, null, null);
+        assertEquals(3, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(firstHour + 6 + i * 3, cursor.getLong(0));
+            assertEquals(HourlyEntry.encodeTenths(-20.5 + 2 + i), cursor.getInt(1));
+        }
+        cursor.close();
+
+        extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE, firstHour + 12);
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: the retention delete kept the wrong hourly rows", 4, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A location's 3-hour forecast queried without a range comes back whole, including for an
+        odd location _id, whose keys share a bit with the end of the default range.
+     */
+    public void testHourlyWithoutRange() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        String locationSetting = locationValues.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        ContentValues oddLocationValues = new ContentValues(locationValues);
+        oddLocationValues.put(LocationEntry._ID, 7);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, oddLocationValues);
+
+        Bundle extras = createApplySyncExtras(locationValues);
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_VALUES, createHourlyValues(
+                locationSetting, HourlyEntry.getEpochHour(TestUtilities.TEST_DATE), 8));
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        assertEquals(7, result.getLongArray(WeatherContract.EXTRA_LOCATION_IDS)[0]);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.CONTENT_URI.buildUpon().appendPath(locationSetting).build(),
+                null, null, null, null);
+        assertEquals("Error: a query without a range missed the location's hourly rows",
+                8, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Times storing, reading back a day of and expiring five days of 3-hour slots for 50
+        locations, the most the sync is expected to carry.  Look for "Hourly benchmark" in the log.
+     */
+    public void testHourlyBenchmark() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final int locationCount = 50;
+        final int slotCount = 5 * 8;
+        long firstHour = HourlyEntry.getEpochHour(TestUtilities.TEST_DATE);
+
+        ContentValues[] locations = new ContentValues[locationCount];
+        ContentValues[] hourly = new ContentValues[locationCount * slotCount];
+        for (int i = 0; i < locationCount; i++) {
+            locations[i] = TestUtilities.createNorthPoleLocationValues();
+            String locationSetting = "benchmark" + i;
+            locations[i].put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            System.arraycopy(createHourlyValues(locationSetting, firstHour, slotCount), 0,
+                    hourly, i * slotCount, slotCount);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_LOCATIONS, locations);
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_VALUES, hourly);
+
+        long start = System.nanoTime();
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        long insertMicros = (System.nanoTime() - start) / 1000;
+        Bundle phaseMicros = result.getBundle(WeatherContract.EXTRA_PHASE_MICROS);
+
+        start = System.nanoTime();
+        int rowsRead = 0;
+        for (int i = 0; i < locationCount; i++) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    HourlyEntry.buildHourlyLocationWithRange("benchmark" + i,
+                            HourlyEntry.getMillisFromEpochHour(firstHour + 24),
+                            HourlyEntry.getMillisFromEpochHour(firstHour + 48)),
+                    null, null, null, null);
+            rowsRead += cursor.getCount();
+            cursor.close();
+        }
+        long queryMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(locationCount * 8, rowsRead);
+
+        extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE, firstHour + 24);
+        start = System.nanoTime();
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        long deleteMicros = (System.nanoTime() - start) / 1000;
+
+        Log.i(LOG_TAG, "Hourly benchmark, " + hourly.length + " rows: apply " + insertMicros
+                + "us (upsert " + phaseMicros.getLong(WeatherContract.SyncMetricsEntry.PHASE_HOURLY_UPSERT)
+                + "us), " + locationCount + " one day range queries " + queryMicros
+                + "us, retention delete " + deleteMicros + "us");
+    }
+
+    /*
+        Times bulkInsert() of 14 rows (one location's forecast), 1,000 and 100,000, each stored
+        fresh, again unchanged, and again with every row changed.  Look for "Bulk insert
+        benchmark" in the log.
+     */
+    public void testBulkInsertBenchmark() {
+        for (int rowCount : new int[]{14, 1000, 100000}) {
+            deleteAllRecordsFromProvider();
+            int days = 14;
+            int locationCount = (rowCount + days - 1) / days;
+            long[] locationIds = new long[locationCount];
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < locationCount; i++) {
+                    ContentValues location = TestUtilities.createNorthPoleLocationValues();
+                    location.put(LocationEntry.COLUMN_LOCATION_SETTING, "bulk" + i);
+                    locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, location);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            dbHelper.close();
+
+            ContentValues[] values = new ContentValues[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                values[i] = TestUtilities.createWeatherValues(locationIds[i / days]);
+                values[i].put(WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + (i % days) * 24L * 60 * 60 * 1000);
+            }
+
+            long start = System.nanoTime();
+            assertEquals(rowCount,
+                    mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+            long insertMicros = (System.nanoTime() - start) / 1000;
+
+            start = System.nanoTime();
+            assertEquals(0,
+                    mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+            long unchangedMicros = (System.nanoTime() - start) / 1000;
+
+            for (ContentValues value : values) {
+                value.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+            }
+            start = System.nanoTime();
+            assertEquals(rowCount,
+                    mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+            long updateMicros = (System.nanoTime() - start) / 1000;
+
+            Log.i(LOG_TAG, "Bulk insert benchmark, " + rowCount + " rows: insert " + insertMicros
+                    + "us, unchanged " + unchangedMicros + "us, update " + updateMicros + "us");
+        }
+        deleteAllRecordsFromProvider();
+    }
+
+    static ContentValues[] createHourlyValues(String locationSetting, long firstHour, int slotCount) {
+        ContentValues[] values = new ContentValues[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            values[i] = new ContentValues();
+            values[i].put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values[i].put(HourlyEntry.COLUMN_EPOCH_HOUR, firstHour + i * 3);
+            values[i].put(HourlyEntry.COLUMN_WEATHER_ID, 600 + i);
+            values[i].put(HourlyEntry.COLUMN_TEMP, HourlyEntry.encodeTenths(-20.5 + i));
+            values[i].put(HourlyEntry.COLUMN_HUMIDITY, 80);
+            values[i].put(HourlyEntry.COLUMN_PRESSURE, HourlyEntry.encodeTenths(1012.7));
+            values[i].put(HourlyEntry.COLUMN_WIND_SPEED, HourlyEntry.encodeTenths(5.5));
+            values[i].put(HourlyEntry.COLUMN_DEGREES, 270);
+        }
+        return values;
+    }
+
+    /*
+        The sync metrics table keeps only its newest MAX_ROWS rows.
+     */
+    public void testSyncMetricsRingBuffer() {
+        mContext.getContentResolver().delete(WeatherContract.SyncMetricsEntry.CONTENT_URI, null, null);
+
+        int total = WeatherContract.SyncMetricsEntry.MAX_ROWS + 10;
+        ContentValues[] values = new ContentValues[total];
+        for (int i = 0; i < total; i++) {
+            values[i] = new ContentValues();
+            values[i].put(WeatherContract.SyncMetricsEntry.COLUMN_SYNC_TIME, (long) i);
+            values[i].put(WeatherContract.SyncMetricsEntry.COLUMN_PHASE,
+                    WeatherContract.SyncMetricsEntry.PHASE_TOTAL);
+            values[i].put(WeatherContract.SyncMetricsEntry.COLUMN_VERSION_CODE, 1);
+            values[i].put(WeatherContract.SyncMetricsEntry.COLUMN_DURATION, 1000L);
+        }
+        assertEquals(total, mContext.getContentResolver().bulkInsert(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI, values));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncMetricsEntry.COLUMN_SYNC_TIME},
+                null, null, WeatherContract.SyncMetricsEntry.COLUMN_SYNC_TIME + " ASC");
+        assertEquals(WeatherContract.SyncMetricsEntry.MAX_ROWS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest rows weren't the ones dropped", 10, cursor.getLong(0));
+        cursor.close();
+
+        mContext.getContentResolver().delete(WeatherContract.SyncMetricsEntry.CONTENT_URI, null, null);
+    }
 }
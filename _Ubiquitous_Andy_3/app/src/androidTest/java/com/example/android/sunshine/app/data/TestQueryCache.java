@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.List;
+
+/*
+    Checks that the query cache serves copies of what it was given, keeps nothing read before
+    an invalidation, and that the provider's writes invalidate the forecast queries it caches.
+ */
+public class TestQueryCache extends AndroidTestCase {
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC,
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private static Cursor createCursor(int rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "max", "short_desc"});
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[]{(long) i, 20.5 + i, "Clear"});
+        }
+        return cursor;
+    }
+
+    public void testPutAndGet() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        QueryCache cache = new QueryCache(QueryCache.MAX_ROWS);
+        List<Object> key = QueryCache.buildKey(WeatherProvider.WEATHER_WITH_LOCATION, "94043", 0,
+                null, null);
+        assertNull(cache.get(key));
+
+        cache.put(key, createCursor(3), cache.getGeneration()).close();
+        Cursor cursor = cache.get(key);
+        assertNotNull("Error: a result wasn't cached", cursor);
+        assertEquals(3, cursor.getCount());
+        cursor.moveToLast();
+        assertEquals(22.5, cursor.getDouble(1));
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(0));
+        cursor.close();
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        assertNull("Error: a different projection hit", cache.get(QueryCache.buildKey(
+                WeatherProvider.WEATHER_WITH_LOCATION, "94043", 0, new String[]{"_id"}, null)));
+    }
+
+    public void testInvalidation() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        QueryCache cache = new QueryCache(QueryCache.MAX_ROWS);
+        List<Object> key = QueryCache.buildKey(WeatherProvider.WEATHER_WITH_LOCATION, "94043", 0,
+                null, null);
+        cache.put(key, createCursor(3), cache.getGeneration()).close();
+        cache.invalidate();
+        assertNull("Error: an invalidated result was served", cache.get(key));
+
+        // A query that read before an invalidation doesn't get to keep its result
+        long generation = cache.getGeneration();
+        cache.invalidate();
+        Cursor cursor = cache.put(key, createCursor(3), generation);
+        assertEquals("Error: the caller didn't get its result", 3, cursor.getCount());
+        cursor.close();
+        assertNull("Error: a result read before an invalidation was kept", cache.get(key));
+        assertEquals("Error: invalidations were counted as evictions", 0, cache.evictionCount());
+    }
+
+    public void testEviction() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        QueryCache cache = new QueryCache(20);
+        for (int i = 0; i < 3; i++) {
+            cache.put(QueryCache.buildKey(WeatherProvider.WEATHER_WITH_LOCATION, "location" + i, 0,
+                    null, null), createCursor(10), cache.getGeneration()).close();
+        }
+        assertEquals(1, cache.evictionCount());
+        assertNull("Error: the least recently used result wasn't the one evicted",
+                cache.get(QueryCache.buildKey(WeatherProvider.WEATHER_WITH_LOCATION, "location0",
+                        0, null, null)));
+    }
+
+    public void testProviderWritesInvalidate() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Uri uri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        QueryCache cache = QueryCache.getInstance();
+        long hits = cache.hitCount();
+        assertEquals(75.0, queryMaxTemp(uri));
+        assertEquals(75.0, queryMaxTemp(uri));
+        assertEquals("Error: the repeated query wasn't served from the cache",
+                hits + 1, cache.hitCount());
+
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, weatherValues,
+                WeatherEntry._ID + " > 0", null);
+        assertEquals("Error: an update didn't invalidate the cache", 80.0, queryMaxTemp(uri));
+
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 85);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{weatherValues});
+        assertEquals("Error: a bulk insert didn't invalidate the cache", 85.0, queryMaxTemp(uri));
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        Cursor cursor = mContext.getContentResolver().query(uri, FORECAST_COLUMNS, null, null, null);
+        assertEquals("Error: a delete didn't invalidate the cache", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    private double queryMaxTemp(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, FORECAST_COLUMNS, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(2);
+        cursor.close();
+        return maxTemp;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
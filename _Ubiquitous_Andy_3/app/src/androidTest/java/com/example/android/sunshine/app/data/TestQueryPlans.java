@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the statements behind each of the provider's URIs, and fails if
+    one of them stops searching an index and scans or sorts its table instead.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    private static final String FORECAST_SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String WEATHER_DATE_INDEX = "sqlite_autoindex_" + WeatherEntry.TABLE_NAME + "_1";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return the plan's lines, one per table or subquery.
+     */
+    private String explain(String sql, String[] args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    private String explainWeatherByLocation(String selection, String[] args) {
+        return explain(WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, selection, null, null, FORECAST_SORT_ORDER, null), args);
+    }
+
+    private static void assertUsesIndex(String plan, String index) {
+        assertTrue("Error: The plan doesn't use " + index + ":\n" + plan,
+                plan.contains("INDEX " + index + " "));
+        assertFalse("Error: The plan sorts its rows:\n" + plan, plan.contains("TEMP B-TREE"));
+    }
+
+    public void testWeatherWithLocation() {
+        String plan = explainWeatherByLocation(WeatherProvider.sLocationIdSelection,
+                new String[]{"1"});
+        assertUsesIndex(plan, WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+
+        plan = explainWeatherByLocation(WeatherProvider.sLocationIdWithStartDateSelection,
+                new String[]{"1", "1419033600000"});
+        assertUsesIndex(plan, WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        assertTrue("Error: The start date isn't searched on:\n" + plan, plan.contains("date>?"));
+    }
+
+    public void testWeatherWithLocationAndDate() {
+        // Either index finds the one row, so either will do as long as both terms are used
+        String plan = explainWeatherByLocation(WeatherProvider.sLocationIdAndDaySelection,
+                new String[]{"1", "1419033600000"});
+        assertFalse("Error: The plan doesn't search the weather table:\n" + plan,
+                plan.contains("SCAN TABLE " + WeatherEntry.TABLE_NAME + " ")
+                        || plan.contains("SCAN " + WeatherEntry.TABLE_NAME + " "));
+        assertTrue("Error: The plan doesn't use both terms:\n" + plan,
+                plan.contains("location_id=?") && plan.contains("date=?"));
+    }
+
+    public void testWeatherByDate() {
+        // The queries and deletes across locations by date alone
+        String plan = explain("SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_DATE + " < ? ORDER BY " + FORECAST_SORT_ORDER,
+                new String[]{"1419033600000"});
+        assertUsesIndex(plan, WEATHER_DATE_INDEX);
+    }
+
+    public void testWeatherHistory() {
+        String plan = explain("SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherEntry.buildHistorySelection(200),
+                new String[]{"1", "1419033600000"});
+        assertUsesIndex(plan, WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+    }
+
+    public void testLocation() {
+        String plan = explain("SELECT * FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"94043"});
+        assertUsesIndex(plan, "sqlite_autoindex_" + LocationEntry.TABLE_NAME + "_1");
+    }
+
+    public void testHourlyWithLocation() {
+        // Within a location, key order is time order
+        String plan = explain(WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(
+                null, WeatherProvider.sHourlyKeyRangeSelection, null, null,
+                HourlyEntry.TABLE_NAME + "." + HourlyEntry._ID + " ASC", null),
+                new String[]{"0", "100"});
+        assertTrue("Error: The plan doesn't search the hourly keys:\n" + plan,
+                plan.contains("INTEGER PRIMARY KEY"));
+        assertFalse("Error: The plan sorts its rows:\n" + plan, plan.contains("TEMP B-TREE"));
+    }
+}
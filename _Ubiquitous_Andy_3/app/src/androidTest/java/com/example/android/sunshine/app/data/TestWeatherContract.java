@@ -42,4 +42,19 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    /*
+        DateNormalizer has to land on the same day start as normalizeDate(), or rows it writes
+        wouldn't match the rows they replace.  Steps through two years seven hours at a time,
+        which crosses both daylight saving changes at different times of day.
+     */
+    public void testDateNormalizer() {
+        WeatherContract.DateNormalizer normalizer = new WeatherContract.DateNormalizer();
+        long step = 7 * 60 * 60 * 1000;
+        long start = TEST_WEATHER_DATE * 1000;
+        for (long date = start; date < start + 2 * 366 * 24L * 60 * 60 * 1000; date += step) {
+            assertEquals("Error: DateNormalizer disagrees with normalizeDate() for " + date,
+                    WeatherContract.normalizeDate(date), normalizer.normalize(date));
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+/*
+    Checks how a run of weather alerts folds into the lines of the alert notification.
+ */
+public class TestWeatherAlertBatcher extends AndroidTestCase {
+
+    public void testCollapse() {
+        ArrayList<WeatherAlertBatcher.Alert> alerts = new ArrayList<WeatherAlertBatcher.Alert>();
+        long now = 1000000000L;
+
+        assertEquals(WeatherAlertBatcher.POST,
+                WeatherAlertBatcher.add(alerts, "94043", "Storm", now));
+        assertEquals("Error: a repeated alert was posted again", WeatherAlertBatcher.SKIP,
+                WeatherAlertBatcher.add(alerts, "94043", "Storm", now + 1000));
+        assertEquals("Error: a changed alert for the same location should update quietly",
+                WeatherAlertBatcher.POST_QUIETLY,
+                WeatherAlertBatcher.add(alerts, "94043", "Hail", now + 2000));
+        assertEquals(1, alerts.size());
+        assertEquals("Hail", alerts.get(0).weather);
+        assertEquals(3, alerts.get(0).count);
+
+        // Another location gets its own line, on top
+        assertEquals(WeatherAlertBatcher.POST,
+                WeatherAlertBatcher.add(alerts, "10001", "Storm", now + 3000));
+        assertEquals(2, alerts.size());
+        assertEquals("10001", alerts.get(0).location);
+
+        // Past the window, the same alert is still the one showing, so it isn't posted again
+        long later = now + 2000 + WeatherAlertBatcher.COALESCE_WINDOW_MILLIS + 1;
+        assertEquals("Error: an alert identical to the one showing was posted again",
+                WeatherAlertBatcher.SKIP,
+                WeatherAlertBatcher.add(alerts, "94043", "Hail", later));
+
+        // but a different one alerts again
+        later += WeatherAlertBatcher.COALESCE_WINDOW_MILLIS + 1;
+        assertEquals(WeatherAlertBatcher.POST,
+                WeatherAlertBatcher.add(alerts, "94043", "Tornado", later));
+        assertEquals(1, alerts.get(0).count);
+    }
+
+    public void testOldAndExtraAlertsDropOff() {
+        ArrayList<WeatherAlertBatcher.Alert> alerts = new ArrayList<WeatherAlertBatcher.Alert>();
+        long now = 1000000000L;
+        for (int i = 0; i < WeatherAlertBatcher.MAX_ALERTS + 2; i++) {
+            WeatherAlertBatcher.add(alerts, "location" + i, "Storm", now + i);
+        }
+        assertEquals(WeatherAlertBatcher.MAX_ALERTS, alerts.size());
+        assertEquals("location" + (WeatherAlertBatcher.MAX_ALERTS + 1), alerts.get(0).location);
+
+        WeatherAlertBatcher.add(alerts, "fresh", "Storm",
+                now + WeatherAlertBatcher.MAX_ALERT_AGE_MILLIS + 100);
+        assertEquals(1, alerts.size());
+    }
+
+    public void testSerialize() {
+        WeatherAlertBatcher.Alert alert =
+                new WeatherAlertBatcher.Alert("Mountain\tView", "Storm\nwarning", 1234L, 3);
+        WeatherAlertBatcher.Alert read = WeatherAlertBatcher.Alert.deserialize(alert.serialize());
+        assertEquals("Mountain View", read.location);
+        assertEquals("Storm warning", read.weather);
+        assertEquals(1234L, read.lastMillis);
+        assertEquals(3, read.count);
+        assertNull(WeatherAlertBatcher.Alert.deserialize(""));
+    }
+}
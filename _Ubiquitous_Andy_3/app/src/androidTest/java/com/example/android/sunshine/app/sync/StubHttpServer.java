@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A tiny HTTP/1.1 server on the loopback interface for the sync tests.  It answers every GET
+    with the same body, gzipped when the client asks for it, honours If-None-Match against its
+    ETag, keeps connections alive, and counts what it sees so tests can check connection reuse.
+ */
+class StubHttpServer {
+    static final String ETAG = "\"stub-etag\"";
+
+    private final ServerSocket mServerSocket;
+    private final byte[] mBody;
+    private final byte[] mGzippedBody;
+    private final long mDelayMillis;
+
+    final AtomicInteger mConnections = new AtomicInteger();
+    final AtomicInteger mRequests = new AtomicInteger();
+    final AtomicInteger mConcurrentRequests = new AtomicInteger();
+    final AtomicInteger mMaxConcurrentRequests = new AtomicInteger();
+    volatile String mLastRequestBody;
+
+    StubHttpServer(byte[] body, long delayMillis) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mBody = body;
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(body);
+        gzip.close();
+        mGzippedBody = gzipped.toByteArray();
+        mDelayMillis = delayMillis;
+
+        Thread acceptThread = new Thread("StubHttpServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + path);
+    }
+
+    int bodyLength() {
+        return mBody.length;
+    }
+
+    int gzippedBodyLength() {
+        return mGzippedBody.length;
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            Thread connectionThread = new Thread("StubHttpServer connection") {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away, which is what clients do
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            };
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.length() == 0) {
+                return;
+            }
+            boolean gzip = false;
+            boolean close = false;
+            String ifNoneMatch = null;
+            int contentLength = 0;
+            String header;
+            while ((header = readLine(in)) != null && header.length() > 0) {
+                String lower = header.toLowerCase(Locale.US);
+                if (lower.startsWith("accept-encoding:") && lower.contains("gzip")) {
+                    gzip = true;
+                } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                    close = true;
+                } else if (lower.startsWith("if-none-match:")) {
+                    ifNoneMatch = header.substring(header.indexOf(':') + 1).trim();
+                } else if (lower.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+                }
+            }
+            if (contentLength > 0) {
+                byte[] requestBody = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int count = in.read(requestBody, read, contentLength - read);
+                    if (count == -1) return;
+                    read += count;
+                }
+                mLastRequestBody = new String(requestBody, "UTF-8");
+            }
+
+            mRequests.incrementAndGet();
+            int concurrent = mConcurrentRequests.incrementAndGet();
+            int max;
+            while (concurrent > (max = mMaxConcurrentRequests.get())) {
+                if (mMaxConcurrentRequests.compareAndSet(max, concurrent)) break;
+            }
+            try {
+                if (mDelayMillis > 0) {
+                    Thread.sleep(mDelayMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mConcurrentRequests.decrementAndGet();
+            }
+
+            StringBuilder response = new StringBuilder();
+            byte[] body;
+            if (ETAG.equals(ifNoneMatch)) {
+                response.append("HTTP/1.1 304 Not Modified\r\n");
+                body = new byte[0];
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+                response.append("Content-Type: application/json; charset=utf-8\r\n");
+                if (gzip) {
+                    response.append("Content-Encoding: gzip\r\n");
+                }
+                body = gzip ? mGzippedBody : mBody;
+                response.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            response.append("ETag: ").append(ETAG).append("\r\n");
+            response.append(close ? "Connection: close\r\n" : "Connection: keep-alive\r\n");
+            response.append("\r\n");
+            out.write(response.toString().getBytes("US-ASCII"));
+            out.write(body);
+            out.flush();
+            if (close) {
+                return;
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.util.Locale;
+
+/*
+    Checks that forecast deltas are validated as a whole, and that applying one writes only the
+    days that differ from what's stored.
+ */
+public class TestForecastDelta extends AndroidTestCase {
+
+    private static final String LOCATION = "delta-test";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    static String createDeltaJson(String location, int firstDay, int numDays, int weatherId) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"location\":\"").append(location).append("\",\"days\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"day\":%d,\"id\":%d,\"main\":\"Clear\",\"max\":21.5,\"min\":10.25,"
+                            + "\"humidity\":81,\"pressure\":1013.2,\"speed\":1.2,\"deg\":270}",
+                    firstDay + i, weatherId));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    public void testParse() throws Throwable {
+        int today = ForecastDelta.getTodayJulianDay();
+        ForecastDelta delta = ForecastDelta.parse(createDeltaJson(LOCATION, today, 3, 800), today);
+        assertEquals(LOCATION, delta.locationSetting);
+        assertEquals(3, delta.days.size());
+
+        Time dayTime = new Time();
+        ContentValues first = delta.days.get(0);
+        assertEquals(dayTime.setJulianDay(today),
+                (long) first.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        assertEquals(800, (int) first.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        assertEquals(10.25, first.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+    }
+
+    public void testRejectsBadDeltas() {
+        int today = ForecastDelta.getTodayJulianDay();
+        String[] bad = {
+                createDeltaJson(LOCATION, today, 0, 800),
+                createDeltaJson(LOCATION, today, ForecastDelta.MAX_DAYS + 1, 800),
+                createDeltaJson(LOCATION, today - 5, 1, 800),
+                createDeltaJson(LOCATION, today + ForecastDelta.MAX_DAYS, 1, 800),
+                createDeltaJson(LOCATION, today, 1, 42),
+                createDeltaJson("", today, 1, 800),
+                createDeltaJson(LOCATION, today, 1, 800).replace("10.25", "31.5"),
+                createDeltaJson(LOCATION, today, 1, 800).replace("\"humidity\":81,", ""),
+                createDeltaJson(LOCATION, today, 1, 800).replace("1013.2", "\"NaN\""),
+                createDeltaJson(LOCATION, today, 2, 800).replace(
+                        "\"day\":" + (today + 1), "\"day\":" + today),
+                "{\"location\":\"" + LOCATION + "\"",
+        };
+        for (String json : bad) {
+            try {
+                ForecastDelta.parse(json, today);
+                fail("Error: accepted " + json);
+            } catch (JSONException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testApply() throws Throwable {
+        int today = ForecastDelta.getTodayJulianDay();
+        ForecastDelta delta = ForecastDelta.parse(createDeltaJson(LOCATION, today, 3, 800), today);
+        assertEquals("Error: a delta for a location we don't have was applied",
+                -1, delta.apply(mContext));
+
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, LOCATION);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, location);
+
+        assertEquals(3, delta.apply(mContext));
+        assertEquals("Error: applying the same delta again changed rows", 0, delta.apply(mContext));
+
+        // One of the three days changes
+        ForecastDelta changed = ForecastDelta.parse(
+                createDeltaJson(LOCATION, today + 2, 1, 500), today);
+        assertEquals(1, changed.apply(mContext));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(3, cursor.getCount());
+        cursor.moveToLast();
+        assertEquals(500, cursor.getInt(0));
+        cursor.close();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
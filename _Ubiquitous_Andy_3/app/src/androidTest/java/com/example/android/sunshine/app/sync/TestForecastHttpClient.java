@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/*
+    Measures the HTTP layer against StubHttpServer: bytes on the wire and time to first byte
+    for the old fresh-connection, uncompressed fetch versus ForecastHttpClient.  Results go to
+    logcat under LOG_TAG.
+ */
+public class TestForecastHttpClient extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastHttpClient.class.getSimpleName();
+
+    private static final int REQUESTS = 5;
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(
+                TestForecastJsonParser.createForecastBytes("Mountain View", 16), 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testGzipAndConnectionReuse() throws Throwable {
+        ForecastHttpClient client = new ForecastHttpClient();
+        long bytesOnWire = 0;
+        long timeToFirstByte = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            ForecastHttpClient.Response response = client.get(mServer.url("/forecast"), null, null);
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertEquals(mServer.bodyLength(), readFully(response.getBody()).length);
+            bytesOnWire += response.getBytesOnWire();
+            timeToFirstByte += response.getTimeToFirstByteMillis();
+            response.close();
+        }
+
+        assertEquals(REQUESTS, mServer.mRequests.get());
+        assertEquals("Error: requests didn't share a pooled connection",
+                1, mServer.mConnections.get());
+        assertEquals(REQUESTS * mServer.gzippedBodyLength(), bytesOnWire);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "after: %d connections, %d body bytes on the wire, %d ms to first byte",
+                mServer.mConnections.get(), bytesOnWire, timeToFirstByte));
+    }
+
+    public void testNotModified() throws Throwable {
+        ForecastHttpClient client = new ForecastHttpClient();
+        ForecastHttpClient.Response response =
+                client.get(mServer.url("/forecast"), StubHttpServer.ETAG, null);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.getCode());
+        response.close();
+        assertEquals(0, response.getBytesOnWire());
+    }
+
+    /*
+        A server that stalls must not hold a request past the sync's deadline, or past the
+        moment the sync is cancelled.
+     */
+    public void testDeadlineCutsOffStalledServer() throws Throwable {
+        StubHttpServer stalled = new StubHttpServer(
+                TestForecastJsonParser.createForecastBytes("Mountain View", 16), 10 * 1000);
+        ForecastHttpClient client = new ForecastHttpClient();
+        try {
+            long start = System.nanoTime();
+            try {
+                client.get(stalled.url("/forecast"), null, null, new SyncDeadline(300));
+                fail("Error: a stalled request outlived its deadline");
+            } catch (SyncDeadline.SyncAbortedException e) {
+                // expected
+            }
+            long expiredMillis = (System.nanoTime() - start) / 1000000;
+
+            final SyncDeadline deadline = new SyncDeadline(SyncDeadline.DEFAULT_BUDGET_MILLIS);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    deadline.cancel();
+                }
+            }).start();
+            start = System.nanoTime();
+            try {
+                client.get(stalled.url("/forecast"), null, null, deadline);
+                fail("Error: a stalled request outlived the sync's cancellation");
+            } catch (SyncDeadline.SyncAbortedException e) {
+                // expected
+            }
+            long cancelledMillis = (System.nanoTime() - start) / 1000000;
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "stalled server: deadline gave up after %d ms, cancel after %d ms",
+                    expiredMillis, cancelledMillis));
+            assertTrue(expiredMillis < 2000);
+            assertTrue(cancelledMillis < 2000);
+        } finally {
+            stalled.shutdown();
+        }
+    }
+
+    /*
+        The way the sync fetched before: a fresh connection every time, no gzip, disconnect()
+        when done.  Kept here as the baseline for the numbers above.
+     */
+    public void testBaseline() throws Throwable {
+        long bytesOnWire = 0;
+        long timeToFirstByte = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            long start = System.nanoTime();
+            HttpURLConnection urlConnection =
+                    (HttpURLConnection) mServer.url("/forecast").openConnection();
+            // Android would otherwise ask for gzip on our behalf; the old code never saw it
+            urlConnection.setRequestProperty("Accept-Encoding", "identity");
+            urlConnection.connect();
+            urlConnection.getResponseCode();
+            timeToFirstByte += (System.nanoTime() - start) / 1000000;
+            bytesOnWire += readFully(urlConnection.getInputStream()).length;
+            urlConnection.disconnect();
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "before: %d connections, %d body bytes on the wire, %d ms to first byte",
+                mServer.mConnections.get(), bytesOnWire, timeToFirstByte));
+    }
+
+    static byte[] readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Locale;
+
+/*
+    Checks that the streaming and tree parsers agree, and benchmarks the two against a 16 day
+    response and a 200 location batch of them.  Results go to logcat under LOG_TAG.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    /*
+        Builds a response shaped like the forecast/daily endpoint's, with the same fields OWM
+        sends for each day (including the ones we skip).
+     */
+    static String createForecastJson(String cityName, int numDays) {
+        StringBuilder sb = new StringBuilder(512 * numDays);
+        sb.append("{\"city\":{\"id\":5375480,\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.386},\"country\":\"US\",")
+                .append("\"population\":0},\"cod\":\"200\",\"message\":0.0117,\"cnt\":")
+                .append(numDays).append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,\"night\":11.3,"
+                            + "\"eve\":17.1,\"morn\":11.3},\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Clear\","
+                            + "\"description\":\"sky is clear\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":0}",
+                    1419033600L + i * 86400L, 18.5 + i, 10.25 + i, 22.75 + i,
+                    1011.5 + i, 40 + i, 800 + (i % 5), 1.5 + i, (i * 37) % 360));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    static byte[] createForecastBytes(String cityName, int numDays) {
+        try {
+            return createForecastJson(cityName, numDays).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /*
+        Builds a response shaped like the 3-hour forecast endpoint's, numSlots slots from
+        firstSecond on.
+     */
+    static String createHourlyForecastJson(long firstSecond, int numSlots) {
+        StringBuilder sb = new StringBuilder(512 * numSlots);
+        sb.append("{\"cod\":\"200\",\"message\":0.0036,\"cnt\":").append(numSlots)
+                .append(",\"list\":[");
+        for (int i = 0; i < numSlots; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"temp_min\":9.1,\"temp_max\":21.4,"
+                            + "\"pressure\":%.2f,\"sea_level\":1030.2,\"humidity\":%d},"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Clear\","
+                            + "\"description\":\"clear sky\",\"icon\":\"01n\"}],"
+                            + "\"clouds\":{\"all\":0},\"wind\":{\"speed\":%.2f,\"deg\":%.1f},"
+                            + "\"dt_txt\":\"2014-12-20 00:00:00\"}",
+                    firstSecond + i * 3 * 3600L, 12.34 + i, 1013.25 + i, 60 + (i % 30),
+                    800 + (i % 5), 2.25 + (i % 7), (i * 37) % 360 + 0.5));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    static byte[] createHourlyForecastBytes(long firstSecond, int numSlots) {
+        try {
+            return createHourlyForecastJson(firstSecond, numSlots).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public void testParsersAgree() throws Throwable {
+        byte[] json = createForecastBytes("Mountain View", 16);
+        ForecastJsonParser.Forecast streamed =
+                ForecastJsonParser.parse(new ByteArrayInputStream(json));
+        ForecastJsonParser.Forecast tree = ForecastJsonParser.parse(new String(json, "UTF-8"));
+
+        assertEquals(200, streamed.code);
+        assertEquals(tree.cityName, streamed.cityName);
+        assertEquals(tree.cityLatitude, streamed.cityLatitude);
+        assertEquals(tree.cityLongitude, streamed.cityLongitude);
+        assertEquals(16, streamed.days.size());
+        assertEquals(tree.days.size(), streamed.days.size());
+        for (int i = 0; i < tree.days.size(); i++) {
+            ContentValues expected = tree.days.get(i);
+            ContentValues actual = streamed.days.get(i);
+            assertEquals("Day " + i + " has different columns", expected.size(), actual.size());
+            for (String column : expected.keySet()) {
+                assertEquals("Day " + i + " differs in " + column,
+                        expected.getAsString(column), actual.getAsString(column));
+            }
+        }
+    }
+
+    public void testHourlyParsersAgree() throws Throwable {
+        byte[] json = createHourlyForecastBytes(1419033600L, 40);
+        ForecastJsonParser.HourlyForecast streamed =
+                ForecastJsonParser.parseHourly(new ByteArrayInputStream(json));
+        ForecastJsonParser.HourlyForecast tree =
+                ForecastJsonParser.parseHourly(new String(json, "UTF-8"));
+
+        assertEquals(200, streamed.code);
+        assertEquals(40, streamed.slots.size());
+        assertEquals(tree.slots.size(), streamed.slots.size());
+        for (int i = 0; i < tree.slots.size(); i++) {
+            ContentValues expected = tree.slots.get(i);
+            ContentValues actual = streamed.slots.get(i);
+            assertEquals("Slot " + i + " has different columns", expected.size(), actual.size());
+            for (String column : expected.keySet()) {
+                assertEquals("Slot " + i + " differs in " + column,
+                        expected.getAsString(column), actual.getAsString(column));
+            }
+        }
+
+        // 1419033600 seconds is hour 394176, and 12.34 degrees is stored as 123 tenths
+        ContentValues first = streamed.slots.get(0);
+        assertEquals(394176L, (long) first.getAsLong(HourlyEntry.COLUMN_EPOCH_HOUR));
+        assertEquals(123, (int) first.getAsInteger(HourlyEntry.COLUMN_TEMP));
+        assertEquals(10133, (int) first.getAsInteger(HourlyEntry.COLUMN_PRESSURE));
+    }
+
+    public void testErrorResponse() throws Throwable {
+        byte[] json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}".getBytes("UTF-8");
+        assertEquals(404, ForecastJsonParser.parse(new ByteArrayInputStream(json)).code);
+        assertEquals(404, ForecastJsonParser.parse(new String(json, "UTF-8")).code);
+    }
+
+    public void testMalformedResponse() throws Throwable {
+        byte[] json = "{\"city\":{\"name\":\"Nowhere\"},\"list\":[{\"pressure\":\"high\"}]}"
+                .getBytes("UTF-8");
+        try {
+            ForecastJsonParser.parse(new ByteArrayInputStream(json));
+            fail("Streaming parser accepted a malformed forecast");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testBenchmarkSixteenDays() throws Throwable {
+        byte[][] fixture = { createForecastBytes("Mountain View", 16) };
+        benchmark("16 days", fixture);
+    }
+
+    public void testBenchmarkTwoHundredLocations() throws Throwable {
+        byte[][] fixture = new byte[200][];
+        for (int i = 0; i < fixture.length; i++) {
+            fixture[i] = createForecastBytes("City " + i, 16);
+        }
+        benchmark("200 locations", fixture);
+    }
+
+    private void benchmark(String name, byte[][] fixture) throws Throwable {
+        // Warm up both paths so we aren't measuring class loading
+        runStreaming(fixture);
+        runTree(fixture);
+
+        long[] streaming = measure(fixture, true);
+        long[] tree = measure(fixture, false);
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: streaming %d us / %d bytes allocated, tree %d us / %d bytes allocated",
+                name, streaming[0], streaming[1], tree[0], tree[1]));
+        assertTrue("Streaming parser allocated more than the tree parser for " + name,
+                streaming[1] <= tree[1]);
+    }
+
+    /*
+        Returns the best wall time in microseconds and the matching allocation in bytes.
+     */
+    @SuppressWarnings("deprecation")
+    private long[] measure(byte[][] fixture, boolean streaming) throws Throwable {
+        long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            Runtime.getRuntime().gc();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            if (streaming) {
+                runStreaming(fixture);
+            } else {
+                runTree(fixture);
+            }
+            long elapsed = (System.nanoTime() - start) / 1000;
+            Debug.stopAllocCounting();
+            long allocated = Debug.getThreadAllocSize();
+            if (elapsed < best[0]) {
+                best[0] = elapsed;
+                best[1] = allocated;
+            }
+        }
+        return best;
+    }
+
+    private static void runStreaming(byte[][] fixture) throws Throwable {
+        for (byte[] json : fixture) {
+            ForecastJsonParser.parse(new ByteArrayInputStream(json));
+        }
+    }
+
+    /*
+        Mirrors what the sync used to do: read the stream line by line into a buffer, then
+        build the tree from the resulting String.
+     */
+    private static void runTree(byte[][] fixture) throws Throwable {
+        for (byte[] json : fixture) {
+            InputStream in = new ByteArrayInputStream(json);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            StringBuffer buffer = new StringBuffer();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                buffer.append(line + "\n");
+            }
+            ForecastJsonParser.parse(buffer.toString());
+        }
+    }
+}
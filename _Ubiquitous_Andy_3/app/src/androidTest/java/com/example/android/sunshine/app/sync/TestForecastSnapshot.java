@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+
+/*
+    Checks that a snapshot survives being parcelled and that from() drops the days that have
+    passed the way a start date query does.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private ForecastSnapshot createSnapshot(long firstDate) {
+        ArrayList<ForecastSnapshot.Day> days = new ArrayList<ForecastSnapshot.Day>();
+        for (int i = 0; i < 3; i++) {
+            days.add(new ForecastSnapshot.Day(firstDate + i * DAY_IN_MILLIS, 800 + i,
+                    "Clear " + i, 20 + i, 10 + i));
+        }
+        return new ForecastSnapshot("94043", days);
+    }
+
+    public void testParcelRoundTrip() {
+        ForecastSnapshot snapshot = createSnapshot(
+                WeatherContract.normalizeDate(System.currentTimeMillis()));
+
+        Parcel parcel = Parcel.obtain();
+        snapshot.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        ForecastSnapshot copy = ForecastSnapshot.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(snapshot.locationSetting, copy.locationSetting);
+        assertEquals(snapshot.days.size(), copy.days.size());
+        for (int i = 0; i < snapshot.days.size(); i++) {
+            ForecastSnapshot.Day expected = snapshot.days.get(i);
+            ForecastSnapshot.Day actual = copy.days.get(i);
+            assertEquals(expected.date, actual.date);
+            assertEquals(expected.weatherId, actual.weatherId);
+            assertEquals(expected.shortDesc, actual.shortDesc);
+            assertEquals(expected.high, actual.high);
+            assertEquals(expected.low, actual.low);
+        }
+    }
+
+    public void testFromDropsPastDays() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ForecastSnapshot snapshot = createSnapshot(today - DAY_IN_MILLIS);
+
+        ForecastSnapshot current = snapshot.from(System.currentTimeMillis());
+        assertEquals(2, current.days.size());
+        assertEquals(today, current.getToday().date);
+
+        assertNull("Error: a snapshot of past days has a today",
+                snapshot.from(today + 5 * DAY_IN_MILLIS).getToday());
+    }
+}
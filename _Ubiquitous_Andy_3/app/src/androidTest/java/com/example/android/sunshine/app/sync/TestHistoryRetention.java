@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Checks that history retention keeps each location's window, gets through more rows than
+    fit in one batch, and stops when told to.
+ */
+public class TestHistoryRetention extends AndroidTestCase {
+
+    private static final String LOCATION = "retention-test";
+    private static final String OTHER_LOCATION = "retention-test-other";
+
+    private HistoryRetention mRetention;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mRetention = new HistoryRetention(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRetention.setHistoryDays(LOCATION, -1);
+        mRetention.setHistoryDays(OTHER_LOCATION, -1);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testPerLocationWindows() {
+        int today = ForecastDelta.getTodayJulianDay();
+        long locationId = insertLocation(LOCATION);
+        long otherLocationId = insertLocation(OTHER_LOCATION);
+        // Ten days of history and four of forecast each
+        insertDays(locationId, today - 10, 14);
+        insertDays(otherLocationId, today - 10, 14);
+
+        mRetention.setHistoryDays(LOCATION, 0);
+        mRetention.setHistoryDays(OTHER_LOCATION, 3);
+        assertTrue(mRetention.run(new SyncDeadline(HistoryRetention.RUN_BUDGET_MILLIS)));
+
+        Time dayTime = new Time();
+        assertEquals(dayTime.setJulianDay(today), getFirstDate(locationId));
+        assertEquals(4, countDays(locationId));
+        assertEquals(dayTime.setJulianDay(today - 3), getFirstDate(otherLocationId));
+        assertEquals(7, countDays(otherLocationId));
+    }
+
+    public void testManyBatches() {
+        int today = ForecastDelta.getTodayJulianDay();
+        long locationId = insertLocation(LOCATION);
+        int days = HistoryRetention.BATCH_ROWS * 2 + 50;
+        insertDays(locationId, today - days, days + 1);
+
+        mRetention.setHistoryDays(LOCATION, 0);
+        assertTrue(mRetention.run(new SyncDeadline(HistoryRetention.RUN_BUDGET_MILLIS)));
+        assertEquals(1, countDays(locationId));
+    }
+
+    public void testStops() {
+        int today = ForecastDelta.getTodayJulianDay();
+        long locationId = insertLocation(LOCATION);
+        insertDays(locationId, today - 10, 11);
+
+        mRetention.setHistoryDays(LOCATION, 0);
+        SyncDeadline deadline = new SyncDeadline(HistoryRetention.RUN_BUDGET_MILLIS);
+        deadline.cancel();
+        assertFalse(mRetention.run(deadline));
+        assertEquals("Error: a cancelled run deleted rows", 11, countDays(locationId));
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri uri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, location);
+        return ContentUris.parseId(uri);
+    }
+
+    private void insertDays(long locationId, int firstJulianDay, int numDays) {
+        Time dayTime = new Time();
+        ContentValues[] rows = new ContentValues[numDays];
+        for (int i = 0; i < numDays; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(firstJulianDay + i));
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            rows[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 321);
+        }
+        assertEquals(numDays, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, rows));
+    }
+
+    private Cursor queryDays(long locationId) {
+        return mContext.getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private int countDays(long locationId) {
+        Cursor cursor = queryDays(locationId);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private long getFirstDate(long locationId) {
+        Cursor cursor = queryDays(locationId);
+        assertTrue(cursor.moveToFirst());
+        long date = cursor.getLong(0);
+        cursor.close();
+        return date;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Benchmarks multi-location fetching against StubHttpServer, which holds every response for
+    SERVER_DELAY_MILLIS to stand in for a real round trip.  Wall times for one worker and for the
+    default pool go to logcat under LOG_TAG.
+ */
+public class TestParallelForecastFetcher extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestParallelForecastFetcher.class.getSimpleName();
+
+    private static final long SERVER_DELAY_MILLIS = 100;
+    private static final int[] LOCATION_COUNTS = { 1, 5, 10, 20 };
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(
+                TestForecastJsonParser.createForecastBytes("Mountain View", 14),
+                SERVER_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testResultsKeepJobOrder() throws Throwable {
+        ParallelForecastFetcher fetcher = new ParallelForecastFetcher();
+        List<StubJob> jobs = createJobs(8);
+        List<ForecastJsonParser.Forecast> results = fetcher.fetchAll(jobs);
+        assertEquals(jobs.size(), results.size());
+        for (ForecastJsonParser.Forecast forecast : results) {
+            assertEquals(14, forecast.days.size());
+        }
+    }
+
+    public void testPerHostCap() throws Throwable {
+        ParallelForecastFetcher fetcher = new ParallelForecastFetcher(8, 2);
+        fetcher.fetchAll(createJobs(10));
+        assertTrue("Error: more than 2 requests were in flight to one host",
+                mServer.mMaxConcurrentRequests.get() <= 2);
+    }
+
+    public void testBenchmarkLocations() throws Throwable {
+        ParallelForecastFetcher sequential = new ParallelForecastFetcher(1, 1);
+        ParallelForecastFetcher parallel = new ParallelForecastFetcher();
+
+        long sequentialLargest = 0;
+        long parallelLargest = 0;
+        for (int count : LOCATION_COUNTS) {
+            List<StubJob> jobs = createJobs(count);
+            long sequentialMillis = time(sequential, jobs);
+            long parallelMillis = time(parallel, jobs);
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d locations: sequential %d ms, parallel %d ms",
+                    count, sequentialMillis, parallelMillis));
+            sequentialLargest = sequentialMillis;
+            parallelLargest = parallelMillis;
+        }
+        assertTrue("Error: parallel sync of " + LOCATION_COUNTS[LOCATION_COUNTS.length - 1]
+                        + " locations wasn't faster than doing them one at a time",
+                parallelLargest * 2 < sequentialLargest);
+    }
+
+    private static long time(ParallelForecastFetcher fetcher, List<StubJob> jobs)
+            throws Throwable {
+        long start = System.nanoTime();
+        fetcher.fetchAll(jobs);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private List<StubJob> createJobs(int count) throws Throwable {
+        ArrayList<StubJob> jobs = new ArrayList<StubJob>(count);
+        for (int i = 0; i < count; i++) {
+            jobs.add(new StubJob(mServer.url("/forecast?q=" + i)));
+        }
+        return jobs;
+    }
+
+    private static class StubJob implements ParallelForecastFetcher.Job<ForecastJsonParser.Forecast> {
+        private static final ForecastHttpClient sClient = new ForecastHttpClient();
+        private final URL mUrl;
+
+        StubJob(URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        public String getHost() {
+            return mUrl.getHost();
+        }
+
+        @Override
+        public ForecastJsonParser.Forecast fetch() throws Exception {
+            ForecastHttpClient.Response response = sClient.get(mUrl, null, null);
+            try {
+                return ForecastJsonParser.parse(response.getBody());
+            } finally {
+                response.close();
+            }
+        }
+    }
+}
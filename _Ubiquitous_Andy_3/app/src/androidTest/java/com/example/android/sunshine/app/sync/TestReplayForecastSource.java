@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Locale;
+
+/*
+    Plays recorded responses through ReplayForecastSource, on its own and through a whole sync.
+    Switching to a location that is stored already, and comes back unchanged or is too fresh
+    to sync at all, should still publish it to the widgets, Muzei and the watch.
+    The sync benchmark times fetch, parse, store and fan-out for a growing number of locations
+    without touching the network, and logs the wall times under LOG_TAG.
+ */
+public class TestReplayForecastSource extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestReplayForecastSource.class.getSimpleName();
+
+    private static final int[] LOCATION_COUNTS = { 1, 5, 20 };
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "replay");
+        mDirectory.mkdirs();
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        writeRecording(ReplayForecastSource.DEFAULT_RECORDING,
+                TestForecastJsonParser.createForecastBytes("Mountain View", 14));
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testReplay() throws Throwable {
+        writeRecording(ReplayForecastSource.getRecordingName("North Pole"),
+                TestForecastJsonParser.createForecastBytes("North Pole", 7));
+        writeRecording(ReplayForecastSource.getRecordingName("Atlantis"),
+                "{\"cod\":\"404\",\"message\":\"city not found\"}".getBytes("UTF-8"));
+        ReplayForecastSource source = new ReplayForecastSource(mDirectory, 0);
+
+        SunshineSyncAdapter.FetchResult result =
+                source.fetch("North Pole", null, null, createDeadline());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals("North Pole", result.forecast.cityName);
+        assertEquals(7, result.forecast.days.size());
+
+        result = source.fetch("94043", null, null, createDeadline());
+        assertEquals("Error: the default recording wasn't used",
+                "Mountain View", result.forecast.cityName);
+
+        result = source.fetch("Atlantis", null, null, createDeadline());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, result.status);
+        assertNull(result.forecast);
+
+        new File(mDirectory, ReplayForecastSource.DEFAULT_RECORDING).delete();
+        result = source.fetch("94043", null, null, createDeadline());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, result.status);
+    }
+
+    public void testDeadline() throws Throwable {
+        ReplayForecastSource source = new ReplayForecastSource(mDirectory, 10 * 1000);
+        long start = System.nanoTime();
+        SunshineSyncAdapter.FetchResult result = source.fetch("94043", null, null,
+                new SyncDeadline(100));
+        assertTrue("Error: the fetch outlived its deadline",
+                (System.nanoTime() - start) / 1000000 < 2000);
+        assertNull(result.forecast);
+    }
+
+    public void testBenchmarkSync() throws Throwable {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false,
+                new ReplayForecastSource(mDirectory, 0));
+        Bundle extras = new Bundle();
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_ALL_LOCATIONS, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_IGNORE_BACKOFF, true);
+
+        for (int count : LOCATION_COUNTS) {
+            deleteAllRecords();
+            for (int i = 0; i < count; i++) {
+                insertLocation("replay-" + i);
+            }
+
+            long start = System.nanoTime();
+            adapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                    null, new SyncResult());
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+            // Every saved location plus the preferred one, which may or may not be among them
+            assertTrue("Error: the sync didn't store every location",
+                    cursor.getCount() >= count * 14);
+            cursor.close();
+
+            Log.i(LOG_TAG, String.format(Locale.US, "%d locations: %d ms", count, millis));
+        }
+    }
+
+    public void testSwitchToStoredLocationPublishes() throws Throwable {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false,
+                new ReplayForecastSource(mDirectory, 0));
+        ForecastFanOut fanOut = new ForecastFanOut(mContext, null);
+        insertLocation("replay-a");
+        insertLocation("replay-b");
+        Bundle extras = new Bundle();
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_ALL_LOCATIONS, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_IGNORE_BACKOFF, true);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        String preferredLocation = Utility.getPreferredLocation(mContext);
+        try {
+            prefs.edit().putString(locationKey, "replay-a").commit();
+            adapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                    null, new SyncResult());
+            assertEquals("replay-a", fanOut.getPublishedLocation());
+
+            // Both are stored and the replayed forecast is the same, so nothing changes
+            prefs.edit().putString(locationKey, "replay-b").commit();
+            adapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                    null, new SyncResult());
+            assertEquals("Error: the location switched to wasn't published",
+                    "replay-b", fanOut.getPublishedLocation());
+
+            // Both synced just now, so this sync is absorbed without fetching anything
+            prefs.edit().putString(locationKey, "replay-a").commit();
+            adapter.onPerformSync(null, new Bundle(),
+                    mContext.getString(R.string.content_authority), null, new SyncResult());
+            assertEquals("Error: the location switched back to wasn't published",
+                    "replay-a", fanOut.getPublishedLocation());
+        } finally {
+            prefs.edit().putString(locationKey, preferredLocation).commit();
+        }
+    }
+
+    private static SyncDeadline createDeadline() {
+        return new SyncDeadline(SyncDeadline.DEFAULT_BUDGET_MILLIS);
+    }
+
+    private void writeRecording(String name, byte[] body) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, name));
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void insertLocation(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 37.386);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -122.084);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
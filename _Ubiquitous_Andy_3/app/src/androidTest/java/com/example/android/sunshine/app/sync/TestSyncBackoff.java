@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+    Walks a breaker through closed, open and half-open on its own preferences file, with the
+    clock passed in.
+ */
+public class TestSyncBackoff extends AndroidTestCase {
+
+    private static final String KEY = SyncBackoff.endpointKey("api.example.com");
+
+    private SharedPreferences mPrefs;
+    private SyncBackoff mBackoff;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = mContext.getSharedPreferences("test_sync_backoff", Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mBackoff = new SyncBackoff(mPrefs, new Random(42));
+    }
+
+    public void testOpensAfterThreshold() {
+        long now = 1000000;
+        for (int i = 1; i < SyncBackoff.FAILURE_THRESHOLD; i++) {
+            mBackoff.onFailure(KEY, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, now);
+            assertEquals(SyncBackoff.STATE_CLOSED, mBackoff.getState(KEY, now));
+        }
+        mBackoff.onFailure(KEY, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, now);
+        assertEquals(SyncBackoff.STATE_OPEN, mBackoff.getState(KEY, now));
+        assertFalse(mBackoff.allowRequest(KEY, now));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, mBackoff.getLastStatus(KEY));
+
+        // A fresh instance over the same preferences sees the same state
+        SyncBackoff reloaded = new SyncBackoff(mPrefs, new Random());
+        assertEquals(SyncBackoff.STATE_OPEN, reloaded.getState(KEY, now));
+    }
+
+    public void testHalfOpenLetsOneProbeThrough() {
+        long now = 1000000;
+        for (int i = 0; i < SyncBackoff.FAILURE_THRESHOLD; i++) {
+            mBackoff.onFailure(KEY, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, now);
+        }
+        long later = now + SyncBackoff.BASE_DELAY_MILLIS;
+        assertEquals(SyncBackoff.STATE_HALF_OPEN, mBackoff.getState(KEY, later));
+        assertTrue(mBackoff.allowRequest(KEY, later));
+        assertFalse("Error: a second probe was let through", mBackoff.allowRequest(KEY, later));
+
+        mBackoff.onSuccess(KEY);
+        assertEquals(SyncBackoff.STATE_CLOSED, mBackoff.getState(KEY, later));
+        assertTrue(mBackoff.allowRequest(KEY, later));
+    }
+
+    public void testDelayGrowsWithJitter() {
+        long previousMax = 0;
+        for (int failures = SyncBackoff.FAILURE_THRESHOLD; failures < 12; failures++) {
+            long delay = mBackoff.getDelayMillis(failures);
+            long max = Math.min(SyncBackoff.BASE_DELAY_MILLIS << (failures - SyncBackoff.FAILURE_THRESHOLD),
+                    SyncBackoff.MAX_DELAY_MILLIS);
+            assertTrue("Error: delay " + delay + " outside [" + max / 2 + ", " + max + "]",
+                    delay >= max / 2 && delay <= max);
+            assertTrue(max >= previousMax);
+            previousMax = max;
+        }
+        assertEquals(SyncBackoff.MAX_DELAY_MILLIS, previousMax);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+    Checks which locations a sync is left with once pending triggers are merged in and fresh
+    locations are taken out.
+ */
+public class TestSyncCoalescer extends AndroidTestCase {
+
+    private static final long NOW = 1450000000000L;
+    private static final long FRESH = NOW - 60 * 1000;
+    private static final long STALE = NOW - SyncCoalescer.FRESHNESS_WINDOW_MILLIS - 1;
+
+    public void testFreshLocationsAreSkipped() {
+        HashMap<String, Long> lastSynced = new HashMap<String, Long>();
+        lastSynced.put("94043", STALE);
+        lastSynced.put("10001", FRESH);
+        lastSynced.put("75001", STALE);
+
+        SyncCoalescer.Plan plan = SyncCoalescer.plan(Arrays.asList("94043", "10001", "75001"),
+                Collections.<String>emptyList(), lastSynced, false, NOW);
+        assertEquals(Arrays.asList("94043", "75001"), plan.locations);
+        assertEquals(1, plan.skipped);
+    }
+
+    public void testPreferredLocationStaysFirst() {
+        HashMap<String, Long> lastSynced = new HashMap<String, Long>();
+        lastSynced.put("94043", FRESH);
+        lastSynced.put("10001", STALE);
+
+        SyncCoalescer.Plan plan = SyncCoalescer.plan(Arrays.asList("94043", "10001"),
+                Collections.<String>emptyList(), lastSynced, false, NOW);
+        assertEquals("Error: a fresh preferred location was dropped from a sync that runs",
+                Arrays.asList("94043", "10001"), plan.locations);
+    }
+
+    public void testRedundantSyncIsAbsorbed() {
+        HashMap<String, Long> lastSynced = new HashMap<String, Long>();
+        lastSynced.put("94043", FRESH);
+        lastSynced.put("10001", FRESH);
+        List<String> requested = Arrays.asList("94043", "10001");
+
+        SyncCoalescer.Plan plan = SyncCoalescer.plan(requested,
+                Collections.<String>emptyList(), lastSynced, false, NOW);
+        assertTrue(plan.locations.isEmpty());
+        assertEquals(2, plan.skipped);
+
+        plan = SyncCoalescer.plan(requested, Collections.<String>emptyList(), lastSynced, true, NOW);
+        assertEquals("Error: a forced sync was absorbed", requested, plan.locations);
+    }
+
+    public void testPendingLocationsAreMerged() {
+        HashMap<String, Long> lastSynced = new HashMap<String, Long>();
+        SyncCoalescer.Plan plan = SyncCoalescer.plan(Arrays.asList("94043"),
+                Arrays.asList("94043", "10001"), lastSynced, false, NOW);
+        assertEquals(Arrays.asList("94043", "10001"), plan.locations);
+        assertEquals(1, plan.merged);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks the scheduling rules on their own, without touching the real periodic sync.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    public void testCalmForecastSyncsLessOften() {
+        int adaptive = SunshineSyncAdapter.SYNC_INTERVAL;
+        for (int i = 0; i < 10; i++) {
+            SyncScheduler.Decision decision = createDecision(0f);
+            SyncScheduler.decide(decision, adaptive);
+            assertTrue("Error: a calm forecast shortened the period",
+                    decision.adaptiveInterval >= adaptive);
+            adaptive = decision.adaptiveInterval;
+        }
+        assertEquals(SyncScheduler.MAX_INTERVAL, adaptive);
+    }
+
+    public void testVolatileForecastSyncsMoreOften() {
+        SyncScheduler.Decision decision = createDecision(1f);
+        SyncScheduler.decide(decision, SunshineSyncAdapter.SYNC_INTERVAL);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL / 2, decision.interval);
+
+        decision = createDecision(1f);
+        SyncScheduler.decide(decision, SyncScheduler.MIN_INTERVAL);
+        assertEquals("Error: the period went below the minimum",
+                SyncScheduler.MIN_INTERVAL, decision.interval);
+    }
+
+    public void testDeviceState() {
+        SyncScheduler.Decision decision = createDecision(0.3f);
+        decision.consumersActive = false;
+        SyncScheduler.decide(decision, SunshineSyncAdapter.SYNC_INTERVAL);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL * 2, decision.interval);
+        assertEquals("Error: device state leaked into the adaptive period",
+                SunshineSyncAdapter.SYNC_INTERVAL, decision.adaptiveInterval);
+
+        decision = createDecision(0.3f);
+        decision.charging = true;
+        decision.unmetered = true;
+        SyncScheduler.decide(decision, SunshineSyncAdapter.SYNC_INTERVAL);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL / 2, decision.interval);
+    }
+
+    public void testFailingIsNeverStretched() {
+        SyncScheduler.Decision decision = createDecision(0f);
+        decision.failing = true;
+        decision.consumersActive = false;
+        SyncScheduler.decide(decision, SyncScheduler.MAX_INTERVAL);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, decision.interval);
+    }
+
+    public void testHistoryRoundTrip() {
+        SyncScheduler.Decision decision = createDecision(0.25f);
+        decision.timeMillis = 1234567890L;
+        SyncScheduler.decide(decision, SunshineSyncAdapter.SYNC_INTERVAL);
+        SyncScheduler.Decision read = SyncScheduler.Decision.deserialize(decision.serialize());
+        assertNotNull(read);
+        assertEquals(decision.timeMillis, read.timeMillis);
+        assertEquals(decision.changedFraction, read.changedFraction);
+        assertEquals(decision.interval, read.interval);
+        assertEquals(decision.adaptiveInterval, read.adaptiveInterval);
+    }
+
+    private static SyncScheduler.Decision createDecision(float changedFraction) {
+        SyncScheduler.Decision decision = new SyncScheduler.Decision();
+        decision.changedFraction = changedFraction;
+        decision.consumersActive = true;
+        return decision;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+    Checks that sync telemetry rolls syncs up into daily histograms, sends only finished days to
+    a local stub collector, and keeps nothing for users who haven't opted in.
+ */
+public class TestSyncTelemetry extends AndroidTestCase {
+
+    private static final int DAY = 2457378;
+
+    private StubHttpServer mServer;
+    private SyncTelemetry mTelemetry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearTelemetry();
+        setEnabled(true);
+        mServer = new StubHttpServer("{}".getBytes("UTF-8"), 0);
+        mTelemetry = new SyncTelemetry(mContext, new ForecastHttpClient(), mServer.url("/collect"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        setEnabled(false);
+        clearTelemetry();
+        super.tearDown();
+    }
+
+    private static SyncMetrics createMetrics(long totalMillis, long bytes, int rowsChanged) {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.record(SyncMetricsEntry.PHASE_FETCH, "94043", totalMillis * 500, bytes, 0);
+        metrics.record(SyncMetricsEntry.PHASE_FAN_OUT_WIDGETS, null, 3000, 0,
+                SyncMetricsEntry.OUTCOME_OK);
+        metrics.record(SyncMetricsEntry.PHASE_TOTAL, null, totalMillis * 1000, 0, 0);
+        metrics.setRowsChanged(rowsChanged);
+        return metrics;
+    }
+
+    public void testBuckets() {
+        assertEquals(0, SyncTelemetry.bucket(0));
+        assertEquals(1, SyncTelemetry.bucket(1));
+        assertEquals(2, SyncTelemetry.bucket(2));
+        assertEquals(2, SyncTelemetry.bucket(3));
+        assertEquals(11, SyncTelemetry.bucket(1500));
+        assertEquals(SyncTelemetry.BUCKETS - 1, SyncTelemetry.bucket(Long.MAX_VALUE));
+    }
+
+    public void testUploadsFinishedDays() throws Throwable {
+        mTelemetry.record(createMetrics(1500, 20000, 14),
+                SunshineSyncAdapter.LOCATION_STATUS_OK, DAY);
+        mTelemetry.record(createMetrics(1200, 0, 0),
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, DAY);
+        assertEquals("Error: a day that isn't over was sent", 0, mTelemetry.upload(null, DAY));
+        assertEquals(0, mServer.mRequests.get());
+
+        assertEquals(1, mTelemetry.upload(null, DAY + 1));
+        JSONArray days = new JSONObject(mServer.mLastRequestBody).getJSONArray("days");
+        assertEquals(1, days.length());
+        JSONObject day = days.getJSONObject(0);
+        assertEquals(DAY, day.getInt("day"));
+        assertEquals(2, day.getInt("syncs"));
+        // Both syncs took between 1024 and 2047ms
+        assertEquals(2, day.getJSONArray("duration_ms").getInt(11));
+        assertEquals(1, day.getJSONArray("status").getInt(SunshineSyncAdapter.LOCATION_STATUS_OK));
+        assertEquals(1, day.getJSONArray("status").getInt(
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN));
+        assertEquals(1, day.getJSONArray("rows_changed").getInt(SyncTelemetry.bucket(14)));
+        assertEquals(2, day.getJSONObject("fan_out_ms").getJSONArray("widgets").getInt(2));
+        assertEquals("Error: a target that wasn't published was counted",
+                0, day.getJSONObject("fan_out_ms").getJSONArray("wear").length());
+
+        assertEquals("Error: a sent day was sent again", 0, mTelemetry.upload(null, DAY + 1));
+        assertEquals(1, mServer.mRequests.get());
+    }
+
+    public void testQueueIsCapped() throws Throwable {
+        int days = SyncTelemetry.MAX_QUEUED_DAYS + 3;
+        for (int i = 0; i < days; i++) {
+            mTelemetry.record(createMetrics(100, 100, 1), 0, DAY + i);
+        }
+        assertEquals(SyncTelemetry.MAX_QUEUED_DAYS, mTelemetry.upload(null, DAY + days));
+        JSONArray sent = new JSONObject(mServer.mLastRequestBody).getJSONArray("days");
+        assertEquals("Error: the newest days weren't the ones kept",
+                DAY + days - 1, sent.getJSONObject(sent.length() - 1).getInt("day"));
+    }
+
+    public void testNothingKeptWhenDisabled() throws Throwable {
+        mTelemetry.record(createMetrics(100, 100, 1), 0, DAY);
+        setEnabled(false);
+        mTelemetry.record(createMetrics(100, 100, 1), 0, DAY + 1);
+        setEnabled(true);
+        assertEquals(0, mTelemetry.upload(null, DAY + 2));
+        assertEquals(0, mServer.mRequests.get());
+    }
+
+    private void setEnabled(boolean enabled) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putBoolean(mContext.getString(R.string.pref_enable_telemetry_key), enabled)
+                .commit();
+    }
+
+    private void clearTelemetry() {
+        mContext.getSharedPreferences("sync_telemetry", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+}
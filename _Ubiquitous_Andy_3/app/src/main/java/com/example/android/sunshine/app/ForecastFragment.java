@@ -33,6 +33,7 @@ import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -47,6 +48,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncBackoff;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
@@ -424,7 +426,19 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                             message = R.string.empty_forecast_list_no_network;
                         }
                 }
-                tv.setText(message);
+                String text = getString(message);
+                if (location == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                        || location == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID) {
+                    // Tell the user we haven't given up, and when we'll be back
+                    long retryTime = new SyncBackoff(getActivity()).getRetryTime(
+                            Utility.getPreferredLocation(getActivity()), System.currentTimeMillis());
+                    if (retryTime > 0) {
+                        text = getString(R.string.format_empty_forecast_list_retry, text,
+                                DateUtils.formatDateTime(getActivity(), retryTime,
+                                        DateUtils.FORMAT_SHOW_TIME));
+                    }
+                }
+                tv.setText(text);
             }
         }
     }
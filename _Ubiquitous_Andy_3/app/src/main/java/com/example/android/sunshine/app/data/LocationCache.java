@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps each stored location setting to its location row: the _id, coordinates and city name.
+ *
+ * Looking a location up by its setting is a query on a string column, and every sync and every
+ * forecast query does it.  The cache answers from memory instead, and is kept in
+ * SharedPreferences so a new process doesn't start cold.  Only WeatherProvider writes location
+ * rows, so it keeps the cache right: it adds rows once they are committed, and drops
+ * everything when a location is updated or deleted by anyone else, and when the database is
+ * created.  A location the cache doesn't hold is simply looked up in the database.
+ */
+public class LocationCache {
+
+    private static final String PREFS_NAME = "location_cache";
+
+    private static LocationCache sInstance;
+
+    private final SharedPreferences mPrefs;
+    // Loaded from the preferences on first use
+    private HashMap<String, Entry> mEntries;
+
+    /**
+     * One location row.
+     */
+    public static class Entry {
+        public final long id;
+        public final String cityName;
+        public final double latitude;
+        public final double longitude;
+
+        public Entry(long id, String cityName, double latitude, double longitude) {
+            this.id = id;
+            this.cityName = cityName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        String serialize() {
+            return id + "\t" + latitude + "\t" + longitude + "\t"
+                    + cityName.replace('\t', ' ');
+        }
+
+        static Entry deserialize(String value) {
+            String[] fields = value.split("\t", 4);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), fields[3],
+                        Double.parseDouble(fields[1]), Double.parseDouble(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean sameAs(Entry other) {
+            return id == other.id && cityName.equals(other.cityName)
+                    && latitude == other.latitude && longitude == other.longitude;
+        }
+    }
+
+    public static synchronized LocationCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    LocationCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the location with the given setting, or null if the cache doesn't hold it.
+     */
+    public synchronized Entry get(String locationSetting) {
+        return getEntries().get(locationSetting);
+    }
+
+    /**
+     * @return the _id of the location with the given setting, or -1 if the cache doesn't hold it.
+     */
+    public long getId(String locationSetting) {
+        Entry entry = get(locationSetting);
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * Adds or replaces a location.  Only to be called once the row is committed.
+     */
+    synchronized void put(String locationSetting, Entry entry) {
+        Entry cached = getEntries().get(locationSetting);
+        if (cached != null && cached.sameAs(entry)) {
+            return;
+        }
+        mEntries.put(locationSetting, entry);
+        mPrefs.edit().putString(locationSetting, entry.serialize()).apply();
+    }
+
+    /**
+     * Forgets every location, for when rows changed in ways the cache can't follow.
+     */
+    synchronized void clear() {
+        if (mEntries != null && mEntries.isEmpty()) {
+            return;
+        }
+        mEntries = new HashMap<String, Entry>();
+        mPrefs.edit().clear().apply();
+    }
+
+    private HashMap<String, Entry> getEntries() {
+        if (mEntries == null) {
+            mEntries = new HashMap<String, Entry>();
+            for (Map.Entry<String, ?> stored : mPrefs.getAll().entrySet()) {
+                Entry entry = stored.getValue() instanceof String
+                        ? Entry.deserialize((String) stored.getValue()) : null;
+                if (entry != null) {
+                    mEntries.put(stored.getKey(), entry);
+                }
+            }
+        }
+        return mEntries;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Snapshots of the provider's forecast query results, so a query asked again before the weather
+ * changes is answered from memory.
+ *
+ * The forecast list, the detail view, the widgets, the notification, Wear and Muzei all ask for
+ * the same few queries of the preferred location, and a sync wakes all of them at once.  A
+ * result is copied out of its cursor into an immutable snapshot, and each query the cache
+ * answers gets its own MatrixCursor over it.  WeatherProvider invalidates the whole cache once a
+ * write that changed weather or location rows has committed, and a query that read the
+ * database before that doesn't get to keep its result after it.
+ *
+ * How often it hit is printed in the sync service's dump.
+ */
+public class QueryCache {
+
+    // The cache is bounded by rows, so a few long results can't keep the rest out
+    static final int MAX_ROWS = 512;
+    // Longer results are passed through and not kept
+    static final int MAX_ROWS_PER_ENTRY = 64;
+
+    private static QueryCache sInstance;
+
+    private final LruCache<List<Object>, Snapshot> mSnapshots;
+    // Counts the invalidations, so a result read before one isn't stored after it
+    private long mGeneration;
+    private boolean mInvalidating;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mInvalidations;
+
+    /**
+     * One query's result: its columns and a copy of every row.
+     */
+    static class Snapshot {
+        final String[] columns;
+        final Object[][] rows;
+
+        Snapshot(String[] columns, Object[][] rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                // Copied into the cursor, so the snapshot stays as it is
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    public static synchronized QueryCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new QueryCache(MAX_ROWS);
+        }
+        return sInstance;
+    }
+
+    QueryCache(int maxRows) {
+        mSnapshots = new LruCache<List<Object>, Snapshot>(maxRows) {
+            @Override
+            protected int sizeOf(List<Object> key, Snapshot snapshot) {
+                // An empty result still takes an entry
+                return Math.max(1, snapshot.rows.length);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, List<Object> key, Snapshot oldValue,
+                                        Snapshot newValue) {
+                if (evicted && !mInvalidating) {
+                    mEvictions++;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param date The date the query asks for, or its start date, or 0 for none.
+     */
+    static List<Object> buildKey(int match, String locationSetting, long date,
+                                 String[] projection, String sortOrder) {
+        return Arrays.<Object>asList(match, locationSetting, date,
+                projection != null ? Arrays.asList(projection) : null, sortOrder);
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there isn't one.
+     */
+    synchronized Cursor get(List<Object> key) {
+        Snapshot snapshot = mSnapshots.get(key);
+        if (snapshot == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return snapshot.newCursor();
+    }
+
+    /**
+     * @return the generation to hand put() for a query about to read the database.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copies a result into the cache, unless the cache was invalidated since generation was
+     * taken, and closes the cursor.
+     *
+     * @return a cursor over the copy, or the cursor itself where results aren't cached.
+     */
+    Cursor put(List<Object> key, Cursor cursor, long generation) {
+        // Without Cursor.getType() values can't be copied as what they are.  A join's repeated
+        // column names are left alone too, as a MatrixCursor resolves them to the first column
+        // and a SQLite cursor to the last.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || cursor.getCount() > MAX_ROWS_PER_ENTRY
+                || hasRepeatedColumns(cursor.getColumnNames())) {
+            return cursor;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = copy(cursor);
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshots.put(key, snapshot);
+            }
+        }
+        return snapshot.newCursor();
+    }
+
+    private static boolean hasRepeatedColumns(String[] columns) {
+        return new HashSet<String>(Arrays.asList(columns)).size() != columns.length;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Snapshot copy(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        row[column] = null;
+                }
+            }
+            rows[i] = row;
+        }
+        return new Snapshot(columns, rows);
+    }
+
+    /**
+     * Drops every result.  Called once a write that changed weather or location rows has
+     * committed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mInvalidations++;
+        mInvalidating = true;
+        try {
+            mSnapshots.evictAll();
+        } finally {
+            mInvalidating = false;
+        }
+    }
+
+    synchronized long hitCount() {
+        return mHits;
+    }
+
+    synchronized long missCount() {
+        return mMisses;
+    }
+
+    synchronized long evictionCount() {
+        return mEvictions;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Query cache:");
+        writer.println(String.format(Locale.US,
+                "  %d hits, %d misses, %d evictions, %d invalidations, %d of %d rows held",
+                mHits, mMisses, mEvictions, mInvalidations, mSnapshots.size(),
+                mSnapshots.maxSize()));
+    }
+}
@@ -21,6 +21,9 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.util.HashMap;
+import java.util.TimeZone;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,6 +46,53 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_HOURLY = "hourly";
+
+    // Methods the provider answers through ContentResolver.call().
+
+    // Writes the weather rows in EXTRA_WEATHER_VALUES, skipping rows identical to the stored
+    // ones.  The result holds the location and date of every row that was actually written, as
+    // parallel arrays under EXTRA_CHANGED_LOCATION_IDS and EXTRA_CHANGED_DATES.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+    public static final String EXTRA_WEATHER_VALUES = "weather_values";
+    public static final String EXTRA_CHANGED_LOCATION_IDS = "changed_location_ids";
+    public static final String EXTRA_CHANGED_DATES = "changed_dates";
+
+    // Applies the result of a sync in one transaction: upserts the location rows in
+    // EXTRA_LOCATIONS, upserts the weather rows in EXTRA_WEATHER_VALUES (which name their
+    // location by COLUMN_LOCATION_SETTING instead of COLUMN_LOC_KEY, and may be for locations
+    // in EXTRA_LOCATIONS or already stored).  Observers get one notification.
+    // The result holds the _id of each location under EXTRA_LOCATION_IDS, in the same order,
+    // along with the changed rows as for METHOD_UPSERT_WEATHER.
+    public static final String METHOD_APPLY_SYNC = "apply_sync";
+    public static final String EXTRA_LOCATIONS = "locations";
+    public static final String EXTRA_LOCATION_IDS = "location_ids";
+    // Optionally, 3-hour forecast rows to store the same way, named by COLUMN_LOCATION_SETTING,
+    // for locations in EXTRA_LOCATIONS or already stored.  Hourly rows before
+    // EXTRA_DELETE_HOURLY_BEFORE, an epoch hour, are deleted if it is present.
+    public static final String EXTRA_HOURLY_VALUES = "hourly_values";
+    public static final String EXTRA_DELETE_HOURLY_BEFORE = "delete_hourly_before";
+    // A Bundle in the result of METHOD_APPLY_SYNC with the time each step took, in microseconds,
+    // keyed by SyncMetricsEntry.PHASE_LOCATION_UPSERT, PHASE_WEATHER_UPSERT,
+    // PHASE_HOURLY_UPSERT and PHASE_RETENTION_DELETE.
+    public static final String EXTRA_PHASE_MICROS = "phase_micros";
+    // Optionally, a SystemClock.elapsedRealtime() after which the sync isn't to be committed.
+    // If it passes before the transaction ends, everything is rolled back and the result only
+    // holds EXTRA_DEADLINE_EXCEEDED, set to true.
+    public static final String EXTRA_DEADLINE = "deadline";
+    public static final String EXTRA_DEADLINE_EXCEEDED = "deadline_exceeded";
+
+    // Deletes the weather rows of the location with _id EXTRA_LOCATION_ID dated on or before
+    // EXTRA_DELETE_ON_OR_BEFORE, oldest first and at most EXTRA_MAX_ROWS of them, in one
+    // transaction.  The result holds how many were deleted under EXTRA_ROWS_DELETED, and the
+    // bytes of database pages that freed up under EXTRA_BYTES_FREED.
+    public static final String METHOD_DELETE_HISTORY = "delete_history";
+    public static final String EXTRA_LOCATION_ID = "location_id";
+    public static final String EXTRA_DELETE_ON_OR_BEFORE = "delete_on_or_before";
+    public static final String EXTRA_MAX_ROWS = "max_rows";
+    public static final String EXTRA_ROWS_DELETED = "rows_deleted";
+    public static final String EXTRA_BYTES_FREED = "bytes_freed";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -54,6 +104,33 @@ public class WeatherContract {
         return time.setJulianDay(julianDay);
     }
 
+    /**
+     * normalizeDate() for a batch of dates.  The day a date falls on is worked out from the time
+     * zone's offset, and the start of each day by a Time once per day, so a batch spanning a
+     * couple of weeks builds one Time rather than one per row.  Not thread safe.
+     */
+    public static final class DateNormalizer {
+        private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+        private final TimeZone mTimeZone = TimeZone.getDefault();
+        private final Time mTime = new Time();
+        private final HashMap<Long, Long> mDayStarts = new HashMap<Long, Long>();
+
+        public long normalize(long date) {
+            long localMillis = date + mTimeZone.getOffset(date);
+            // Days since the epoch, rounding down for dates before it as getJulianDay() does
+            long day = localMillis >= 0
+                    ? localMillis / DAY_MILLIS : (localMillis + 1) / DAY_MILLIS - 1;
+            Long dayStart = mDayStarts.get(day);
+            if (dayStart == null) {
+                // The start of a day depends on daylight saving, which Time knows about
+                dayStart = mTime.setJulianDay((int) day + Time.EPOCH_JULIAN_DAY);
+                mDayStarts.put(day, dayStart);
+            }
+            return dayStart;
+        }
+    }
+
     /* Inner class that defines the table contents of the location table */
     public static final class LocationEntry implements BaseColumns {
 
@@ -81,6 +158,11 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The ETag and Last-Modified validators from the last forecast we stored for this
+        // location, sent back on the next request so an unchanged forecast costs us a 304.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -126,6 +208,16 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        /**
+         * @return a selection for at most maxRows of one location's rows dated on or before a
+         * date, oldest first, taking the location's _id and the date as its arguments.
+         */
+        public static String buildHistorySelection(int maxRows) {
+            return _ID + " IN (SELECT " + _ID + " FROM " + TABLE_NAME
+                    + " WHERE " + COLUMN_LOC_KEY + " = ? AND " + COLUMN_DATE + " <= ?"
+                    + " ORDER BY " + COLUMN_DATE + " LIMIT " + maxRows + ")";
+        }
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +257,155 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the 3-hour forecast table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        // There are about 40 rows per location for every daily one, so the values are kept as
+        // small integers, which SQLite stores in one to three bytes instead of eight for a REAL.
+        public static final String TABLE_NAME = "hourly";
+
+        // The _id is not assigned by SQLite: it is buildKey(location_id, epoch_hour), so the
+        // rows sit in the table's own b-tree in location then time order, and a time range for
+        // one location is a range of _ids.  That gives us a covering index for range queries
+        // without keeping a second copy of every row.
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the 3-hour slot, in whole hours since the epoch
+        public static final String COLUMN_EPOCH_HOUR = "epoch_hour";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature, in tenths of a degree Celsius
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity, in percent
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure, in tenths of a hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Wind speed, in tenths of a meter per second
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Meteorological degrees (e.g, 0 is north, 180 is south)
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Query parameters of a range query, in epoch hours.  The start is inclusive and the end
+        // exclusive.
+        public static final String PARAM_START_HOUR = "start_hour";
+        public static final String PARAM_END_HOUR = "end_hour";
+
+        private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+        // Epoch hours fit in 24 bits for the next 1900 years
+        static final int KEY_HOUR_BITS = 24;
+
+        public static long buildKey(long locationId, long epochHour) {
+            return (locationId << KEY_HOUR_BITS) | epochHour;
+        }
+
+        public static long getEpochHour(long millis) {
+            return millis / HOUR_IN_MILLIS;
+        }
+
+        public static long getMillisFromEpochHour(long epochHour) {
+            return epochHour * HOUR_IN_MILLIS;
+        }
+
+        public static int encodeTenths(double value) {
+            return (int) Math.round(value * 10);
+        }
+
+        public static double decodeTenths(int tenths) {
+            return tenths / 10.0;
+        }
+
+        /**
+         * @return the URI of a location's 3-hour forecast from startMillis, inclusive, to
+         * endMillis, exclusive.
+         */
+        public static Uri buildHourlyLocationWithRange(String locationSetting, long startMillis,
+                                                       long endMillis) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START_HOUR, Long.toString(getEpochHour(startMillis)))
+                    .appendQueryParameter(PARAM_END_HOUR,
+                            Long.toString(getEpochHour(endMillis + HOUR_IN_MILLIS - 1)))
+                    .build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartHourFromUri(Uri uri) {
+            String hour = uri.getQueryParameter(PARAM_START_HOUR);
+            return hour == null || hour.length() == 0 ? 0 : Long.parseLong(hour);
+        }
+
+        /**
+         * @return the end hour of a range query, exclusive, or one past the last hour a key can
+         * hold if the query has no end.
+         */
+        public static long getEndHourFromUri(Uri uri) {
+            String hour = uri.getQueryParameter(PARAM_END_HOUR);
+            return hour == null || hour.length() == 0 ? (1L << KEY_HOUR_BITS) : Long.parseLong(hour);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+
+        // The table is a ring buffer: once it holds MAX_ROWS rows, every insert drops the oldest.
+        public static final String TABLE_NAME = "sync_metrics";
+        public static final int MAX_ROWS = 5000;
+
+        // When the sync the row belongs to started, in milliseconds since the epoch.  All the
+        // rows of one sync share it.
+        public static final String COLUMN_SYNC_TIME = "sync_time";
+        // One of the PHASE_ values below
+        public static final String COLUMN_PHASE = "phase";
+        // The location the phase worked on, or null for phases that cover the whole sync
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+        // The versionCode of the app that recorded the row, so releases can be compared
+        public static final String COLUMN_VERSION_CODE = "version_code";
+        // How long the phase took, in microseconds
+        public static final String COLUMN_DURATION = "duration";
+        // Bytes moved, for the download phase; bytes freed, for PHASE_HISTORY_RETENTION; 0
+        // otherwise
+        public static final String COLUMN_BYTES = "bytes";
+        // For the network phases the HTTP response code, or -1 if there wasn't one.  For
+        // PHASE_FETCH and PHASE_TOTAL the location status.  For the rest 0, or -1 if the phase
+        // threw.
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        public static final String PHASE_CONNECT = "connect";
+        public static final String PHASE_TIME_TO_FIRST_BYTE = "ttfb";
+        public static final String PHASE_DOWNLOAD = "download";
+        public static final String PHASE_PARSE = "parse";
+        public static final String PHASE_FETCH = "fetch";
+        public static final String PHASE_LOCATION_UPSERT = "location_upsert";
+        public static final String PHASE_WEATHER_UPSERT = "weather_upsert";
+        public static final String PHASE_HOURLY_UPSERT = "hourly_upsert";
+        public static final String PHASE_RETENTION_DELETE = "retention_delete";
+        // Deleting one location's weather history, outside of any sync
+        public static final String PHASE_HISTORY_RETENTION = "history_retention";
+        public static final String PHASE_FAN_OUT_WIDGETS = "fan_out_widgets";
+        public static final String PHASE_FAN_OUT_MUZEI = "fan_out_muzei";
+        public static final String PHASE_FAN_OUT_NOTIFICATION = "fan_out_notification";
+        public static final String PHASE_FAN_OUT_WEAR = "fan_out_wear";
+        // Applying a forecast delta pushed through GCM, outside of any sync
+        public static final String PHASE_GCM_DELTA = "gcm_delta";
+        public static final String PHASE_TOTAL = "total";
+
+        public static final int OUTCOME_OK = 0;
+        public static final int OUTCOME_ERROR = -1;
+    }
 }
@@ -15,25 +15,108 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database is written in write-ahead log mode where the platform has it (Honeycomb on), so
+ * the loaders, widgets and Muzei reading it aren't held up by a sync writing it: each reader
+ * gets its own connection and sees the last commit while the next one is being written.  The
+ * writes come in one burst per sync, so the log is sized to take a whole sync without
+ * checkpointing partway, and the provider checkpoints once the sync has committed.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 6;
+
+    // The oldest version onUpgrade() migrates rather than starts over from
+    private static final int FIRST_MIGRATED_VERSION = 5;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Every forecast query picks one location's rows and then a date or a range of them, in
+    // date order.  The UNIQUE (date, location_id) constraint's index leads with the date, which
+    // only suits the queries across locations by date.
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    // Pages the log may grow to before a commit checkpoints it on its own.  A sync of every
+    // saved location writes a few hundred, and the platform default is as low as 100, which
+    // would checkpoint in the middle of the burst.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    // What the log is truncated to after a checkpoint, so one big sync doesn't keep its space
+    static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+        if (isWriteAheadLogging(db)) {
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT_BYTES, null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.d(LOG_TAG, "Write-ahead logging not available, readers will wait for the sync");
+        }
+    }
+
+    private static boolean isWriteAheadLogging(SQLiteDatabase db) {
+        return "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+
+    /**
+     * Copies what the last commits wrote to the log back into the database, as far as it can
+     * without waiting for the readers still on older pages.  The provider calls it after a sync
+     * has committed, so the log stays short for the readers that follow.  Does nothing without
+     * write-ahead logging.
+     */
+    void checkpoint(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !isWriteAheadLogging(db)) {
+            return;
+        }
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            // Columns are busy, log pages and pages checkpointed
+            if (cursor.moveToFirst() && cursor.getInt(1) != cursor.getInt(2)) {
+                Log.d(LOG_TAG, "Checkpointed " + cursor.getInt(2) + " of " + cursor.getInt(1)
+                        + " log pages, readers held the rest");
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -45,7 +128,9 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,12 +164,62 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // Timings of the sync, kept for diagnostics.  Rows are only ever appended and trimmed
+        // from the oldest end, so _id order is time order.
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_SYNC_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                SyncMetricsEntry.COLUMN_VERSION_CODE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncMetricsEntry.COLUMN_OUTCOME + " INTEGER NOT NULL DEFAULT 0" +
+                " );";
+
+        // The 3-hour forecast.  The _id is HourlyEntry.buildKey(location_id, epoch_hour) rather
+        // than a rowid SQLite picks, which keeps the rows clustered by location and time and
+        // makes a second index unnecessary.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY, " +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_EPOCH_HOUR + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " INTEGER, " +
+                HourlyEntry.COLUMN_PRESSURE + " INTEGER, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " INTEGER, " +
+                HourlyEntry.COLUMN_DEGREES + " INTEGER, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        createWeatherLocationDateIndex(sqLiteDatabase);
+
+        // Location ids start over with the table
+        LocationCache.getInstance(mContext).clear();
+    }
+
+    private static void createWeatherLocationDateIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_LOCATION_DATE +
+                " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if (oldVersion >= FIRST_MIGRATED_VERSION) {
+            // Each step takes the schema one version up, keeping the data
+            if (oldVersion < 6) {
+                createWeatherLocationDateIndex(sqLiteDatabase);
+            }
+            return;
+        }
+
         // This database is only a cache for online data, so its upgrade policy is
         // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
@@ -93,6 +228,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -15,27 +15,50 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private LocationCache mLocationCache;
+    private QueryCache mQueryCache;
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_METRICS = 400;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The query builders and selections are package-private for TestQueryPlans, which checks
+    // that each one searches an index
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,36 +74,65 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
+    // The forecast queries name their location by setting, which LocationCache turns into the
+    // location's _id, so they filter on the weather table's own column rather than on a string
+    // in the table joined to it.  The join only fills in the location's columns.
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //hourly._id >= ? AND hourly._id < ?
+    // A location's slots are one range of keys, so SQLite reads them straight off the hourly
+    // table's b-tree.
+    static final String sHourlyKeyRangeSelection =
+            WeatherContract.HourlyEntry.TABLE_NAME + "." + WeatherContract.HourlyEntry._ID +
+                    " >= ? AND " +
+                    WeatherContract.HourlyEntry.TABLE_NAME + "." + WeatherContract.HourlyEntry._ID +
+                    " < ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        String locationId = Long.toString(
+                resolveLocationId(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri)));
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
 
         String[] selectionArgs;
         String selection;
 
         if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{locationId};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selectionArgs = new String[]{locationId, Long.toString(startDate)};
+            selection = sLocationIdWithStartDateSelection;
         }
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
@@ -95,19 +147,93 @@ public class WeatherProvider extends ContentProvider {
 
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long locationId =
+                resolveLocationId(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
                 null,
                 null,
                 sortOrder
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        long locationId =
+                resolveLocationId(WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        long startKey;
+        long endKey;
+        if (locationId == -1) {
+            // Matches nothing
+            startKey = 0;
+            endKey = 0;
+        } else {
+            startKey = WeatherContract.HourlyEntry.buildKey(locationId,
+                    WeatherContract.HourlyEntry.getStartHourFromUri(uri));
+            long endHour = WeatherContract.HourlyEntry.getEndHourFromUri(uri);
+            // An end past the last hour a key holds, like the default one, would spill into the
+            // location id when or-ed in, so it ends at the next location's first key instead
+            endKey = endHour >= 1L << WeatherContract.HourlyEntry.KEY_HOUR_BITS
+                    ? WeatherContract.HourlyEntry.buildKey(locationId + 1, 0)
+                    : WeatherContract.HourlyEntry.buildKey(locationId, endHour);
+        }
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sHourlyKeyRangeSelection,
+                new String[]{Long.toString(startKey), Long.toString(endKey)},
+                null,
+                null,
+                sortOrder
+        );
+    }
+
+    /**
+     * @return the _id of the location with the given setting, from the cache if it holds it,
+     * or -1 if there is no such location.  Not for use inside a transaction, as what it reads
+     * from the database is cached as committed.
+     */
+    private long resolveLocationId(String locationSetting) {
+        long locationId = mLocationCache.getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            mLocationCache.put(locationSetting, new LocationCache.Entry(cursor.getLong(0),
+                    cursor.getString(1), cursor.getDouble(2), cursor.getDouble(3)));
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Caches a location that was just committed.
+     */
+    private void cacheLocation(long locationId, ContentValues values) {
+        mLocationCache.put(values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING),
+                new LocationCache.Entry(locationId,
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                        values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                        values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG)));
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +256,11 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +271,8 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mLocationCache = LocationCache.getInstance(getContext());
+        mQueryCache = QueryCache.getInstance();
         return true;
     }
 
@@ -164,6 +297,11 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,16 +313,34 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                List<Object> key = QueryCache.buildKey(match,
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromUri(uri), projection, sortOrder);
+                retCursor = mQueryCache.get(key);
+                if (retCursor == null) {
+                    long generation = mQueryCache.getGeneration();
+                    retCursor = mQueryCache.put(key,
+                            getWeatherByLocationSettingAndDate(uri, projection, sortOrder),
+                            generation);
+                }
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                List<Object> key = QueryCache.buildKey(match,
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getStartDateFromUri(uri), projection, sortOrder);
+                retCursor = mQueryCache.get(key);
+                if (retCursor == null) {
+                    long generation = mQueryCache.getGeneration();
+                    retCursor = mQueryCache.put(key,
+                            getWeatherByLocationSetting(uri, projection, sortOrder), generation);
+                }
                 break;
             }
             // "weather"
@@ -213,6 +369,37 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -238,6 +425,11 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                mQueryCache.invalidate();
+                LinkedHashMap<Long, Long> changes = new LinkedHashMap<Long, Long>();
+                changes.put(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                notifyWeatherChanged(db, changes, null);
                 break;
             }
             case LOCATION: {
@@ -246,12 +438,15 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                cacheLocation(_id, values);
+                mQueryCache.invalidate();
+                // A new location has no weather yet, so only the location observers care
+                getContext().getContentResolver().notifyChange(returnUri, null);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
         return returnUri;
     }
 
@@ -266,15 +461,31 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mQueryCache.invalidate();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mLocationCache.clear();
+                    mQueryCache.invalidate();
+                }
+                break;
+            case SYNC_METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        // Because a null deletes all rows
+        // Because a null deletes all rows.  Any row may match the selection, so the observers
+        // of everything under uri are told.
         if (rowsDeleted != 0) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
@@ -301,14 +512,23 @@ public class WeatherProvider extends ContentProvider {
                 normalizeDate(values);
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    mQueryCache.invalidate();
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    // Any of the rows may have changed setting, so none of them can be trusted
+                    mLocationCache.clear();
+                    mQueryCache.invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        // Any row may match the selection, so the observers of everything under uri are told
         if (rowsUpdated != 0) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
@@ -321,27 +541,825 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                ArrayList<Long> changedLocationIds = new ArrayList<Long>();
+                ArrayList<Long> changedDates = new ArrayList<Long>();
+                int returnCount = upsertWeather(db, values, changedLocationIds, changedDates);
+                if (returnCount > 0) {
+                    mQueryCache.invalidate();
+                    LinkedHashMap<Long, Long> changes = new LinkedHashMap<Long, Long>();
+                    addWeatherChanges(changes, changedLocationIds, changedDates);
+                    notifyWeatherChanged(db, changes, null);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
                 return returnCount;
+            case SYNC_METRICS:
+                int metricsCount = insertSyncMetrics(db, values);
+                if (metricsCount > 0) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return metricsCount;
+            case HOURLY:
+                int hourlyCount = insertHourly(db, values);
+                if (hourlyCount > 0) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return hourlyCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_APPLY_SYNC.equals(method)) {
+            return applySync(extras);
+        }
+        if (WeatherContract.METHOD_DELETE_HISTORY.equals(method)) {
+            return deleteHistory(extras);
+        }
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            ContentValues[] values = getContentValuesArray(extras, WeatherContract.EXTRA_WEATHER_VALUES);
+
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            ArrayList<Long> changedLocationIds = new ArrayList<Long>();
+            ArrayList<Long> changedDates = new ArrayList<Long>();
+            int changed = upsertWeather(db, values, changedLocationIds, changedDates);
+            if (changed > 0) {
+                mQueryCache.invalidate();
+                LinkedHashMap<Long, Long> changes = new LinkedHashMap<Long, Long>();
+                addWeatherChanges(changes, changedLocationIds, changedDates);
+                notifyWeatherChanged(db, changes, null);
+            }
+
+            Bundle result = new Bundle();
+            result.putLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS, toArray(changedLocationIds));
+            result.putLongArray(WeatherContract.EXTRA_CHANGED_DATES, toArray(changedDates));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Appends rows to the sync metrics table and trims it back to MAX_ROWS, oldest first.
+     */
+    private int insertSyncMetrics(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, value) != -1) {
+                    returnCount++;
+                }
+            }
+            db.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                    WeatherContract.SyncMetricsEntry._ID + " <= (SELECT MAX("
+                            + WeatherContract.SyncMetricsEntry._ID + ") FROM "
+                            + WeatherContract.SyncMetricsEntry.TABLE_NAME + ") - "
+                            + WeatherContract.SyncMetricsEntry.MAX_ROWS,
+                    null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Applies everything a sync fetched as one transaction, so readers see either none of it or
+     * all of it, and the observers of each location that changed are told once at the end.
+     */
+    private Bundle applySync(Bundle extras) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentValues[] locations = getContentValuesArray(extras, WeatherContract.EXTRA_LOCATIONS);
+        ContentValues[] weather = getContentValuesArray(extras, WeatherContract.EXTRA_WEATHER_VALUES);
+        ContentValues[] hourly = getContentValuesArray(extras, WeatherContract.EXTRA_HOURLY_VALUES);
+
+        long[] locationIds = new long[locations.length];
+        ArrayList<Long> changedLocationIds = new ArrayList<Long>();
+        ArrayList<Long> changedDates = new ArrayList<Long>();
+        // Dates by the location they changed for, as notifyWeatherChanged() takes them
+        LinkedHashMap<Long, Long> changes = new LinkedHashMap<Long, Long>();
+        HashMap<String, Long> idsBySetting = new HashMap<String, Long>();
+        ArrayList<Long> changedLocationRows = new ArrayList<Long>();
+        boolean hourlyChanged = false;
+
+        long deadline = extras.getLong(WeatherContract.EXTRA_DEADLINE, Long.MAX_VALUE);
+        Bundle phaseMicros = new Bundle();
+        db.beginTransaction();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < locations.length; i++) {
+                long[] upserted = upsertLocation(db, locations[i]);
+                locationIds[i] = upserted[0];
+                if (upserted[1] != 0) {
+                    // Every weather row of the location is read joined to it
+                    changes.put(upserted[0], null);
+                    changedLocationRows.add(upserted[0]);
+                }
+                idsBySetting.put(locations[i].getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), upserted[0]);
+            }
+            start = putPhaseMicros(phaseMicros,
+                    WeatherContract.SyncMetricsEntry.PHASE_LOCATION_UPSERT, start);
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return deadlineExceeded();
+            }
+
+            for (ContentValues value : weather) {
+                String locationSetting = value.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                value.remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                Long locationId = idsBySetting.get(locationSetting);
+                if (locationId == null) {
+                    // A forecast delta only carries days, for a location we already have
+                    locationId = getLocationId(db, locationSetting);
+                    idsBySetting.put(locationSetting, locationId);
+                }
+                value.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            }
+            upsertWeather(db, weather, changedLocationIds, changedDates);
+            start = putPhaseMicros(phaseMicros,
+                    WeatherContract.SyncMetricsEntry.PHASE_WEATHER_UPSERT, start);
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return deadlineExceeded();
+            }
+
+            if (hourly.length > 0) {
+                for (ContentValues value : hourly) {
+                    String locationSetting = value.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    value.remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    Long locationId = idsBySetting.get(locationSetting);
+                    if (locationId == null) {
+                        // The daily forecast may not have changed, leaving its location out
+                        locationId = getLocationId(db, locationSetting);
+                        idsBySetting.put(locationSetting, locationId);
+                    }
+                    value.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                }
+                hourlyChanged = insertHourly(db, hourly) > 0;
+                start = putPhaseMicros(phaseMicros,
+                        WeatherContract.SyncMetricsEntry.PHASE_HOURLY_UPSERT, start);
+            }
+
+            if (extras.containsKey(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE)) {
+                hourlyChanged |= deleteHourlyBefore(db,
+                        extras.getLong(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE)) > 0;
+                putPhaseMicros(phaseMicros,
+                        WeatherContract.SyncMetricsEntry.PHASE_RETENTION_DELETE, start);
+            }
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return deadlineExceeded();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        for (int i = 0; i < locations.length; i++) {
+            cacheLocation(locationIds[i], locations[i]);
+        }
+
+        addWeatherChanges(changes, changedLocationIds, changedDates);
+        if (!changes.isEmpty()) {
+            mQueryCache.invalidate();
+            HashMap<Long, String> settingsById = new HashMap<Long, String>();
+            for (Map.Entry<String, Long> entry : idsBySetting.entrySet()) {
+                settingsById.put(entry.getValue(), entry.getKey());
+            }
+            notifyWeatherChanged(db, changes, settingsById);
+        }
+        for (long locationId : changedLocationRows) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.LocationEntry.buildLocationUri(locationId), null);
+        }
+        if (hourlyChanged) {
+            // Every sync rewrites the hourly rows, which shouldn't wake the daily observers
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.HourlyEntry.CONTENT_URI, null);
+        }
+        // After the observers are told, as the readers they wake aren't blocked by it
+        mOpenHelper.checkpoint(db);
+
+        Bundle result = new Bundle();
+        result.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, locationIds);
+        result.putLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS, toArray(changedLocationIds));
+        result.putLongArray(WeatherContract.EXTRA_CHANGED_DATES, toArray(changedDates));
+        result.putBundle(WeatherContract.EXTRA_PHASE_MICROS, phaseMicros);
+        return result;
+    }
+
+    /**
+     * Deletes one batch of a location's weather history in its own transaction, so that a long
+     * cleanup holds the database for a batch at a time rather than for all of it.
+     */
+    private Bundle deleteHistory(Bundle extras) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowsDeleted;
+        long bytesFreed;
+        db.beginTransaction();
+        try {
+            long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry.buildHistorySelection(
+                            extras.getInt(WeatherContract.EXTRA_MAX_ROWS)),
+                    new String[]{
+                            Long.toString(extras.getLong(WeatherContract.EXTRA_LOCATION_ID)),
+                            Long.toString(extras.getLong(WeatherContract.EXTRA_DELETE_ON_OR_BEFORE))});
+            // Pages only come free once every row on them is gone, so this trails the rows
+            bytesFreed = Math.max(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null)
+                    - freePages) * db.getPageSize();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowsDeleted > 0) {
+            mQueryCache.invalidate();
+            LinkedHashMap<Long, Long> changes = new LinkedHashMap<Long, Long>();
+            changes.put(extras.getLong(WeatherContract.EXTRA_LOCATION_ID), null);
+            notifyWeatherChanged(db, changes, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROWS_DELETED, rowsDeleted);
+        result.putLong(WeatherContract.EXTRA_BYTES_FREED, bytesFreed);
+        return result;
+    }
+
+    /**
+     * Adds the rows upsertWeather() wrote to changes, which maps each location to the one date
+     * of it that changed, or to null if more than one did.
+     */
+    private static void addWeatherChanges(Map<Long, Long> changes, List<Long> changedLocationIds,
+                                          List<Long> changedDates) {
+        for (int i = 0; i < changedLocationIds.size(); i++) {
+            Long locationId = changedLocationIds.get(i);
+            Long date = changedDates.get(i);
+            if (!changes.containsKey(locationId)) {
+                changes.put(locationId, date);
+            } else if (!date.equals(changes.get(locationId))) {
+                changes.put(locationId, null);
+            }
+        }
+    }
+
+    /**
+     * Tells the observers of each location in changes, once each: on the URI of the date that
+     * changed, or on the location's URI if more than one did, which covers all of its dates.
+     * A sync for one city then leaves the loaders of another, and the detail views of days
+     * that didn't change, alone.  Ancestors registered for descendants, like the observers of
+     * WeatherEntry.CONTENT_URI, are still told.
+     *
+     * @param changes Dates by location, as addWeatherChanges() collects them.
+     * @param settingsById The location settings the caller already has, or null.  Any
+     * location missing from it is looked up.
+     */
+    private void notifyWeatherChanged(SQLiteDatabase db, Map<Long, Long> changes,
+                                      Map<Long, String> settingsById) {
+        ContentResolver resolver = getContext().getContentResolver();
+        for (Map.Entry<Long, Long> change : changes.entrySet()) {
+            Long locationId = change.getKey();
+            String locationSetting = settingsById != null ? settingsById.get(locationId) : null;
+            if (locationSetting == null && locationId != null) {
+                locationSetting = getLocationSetting(db, locationId);
+            }
+            if (locationSetting == null) {
+                // Nothing narrower is known, so every weather observer is told
+                resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+                continue;
+            }
+            Long date = change.getValue();
+            if (date != null) {
+                resolver.notifyChange(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, date), null);
+            } else {
+                resolver.notifyChange(
+                        WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting), null);
+            }
+        }
+    }
+
+    /**
+     * @return the result of a sync that ran out of time, for returning from inside its
+     * transaction, which then ends without being marked successful and rolls back.
+     */
+    private static Bundle deadlineExceeded() {
+        Bundle result = new Bundle();
+        result.putBoolean(WeatherContract.EXTRA_DEADLINE_EXCEEDED, true);
+        return result;
+    }
+
+    /**
+     * Records the time since start under phase.
+     *
+     * @return now, as the start of the next phase.
+     */
+    private static long putPhaseMicros(Bundle phaseMicros, String phase, long start) {
+        long now = System.nanoTime();
+        phaseMicros.putLong(phase, (now - start) / 1000);
+        return now;
+    }
+
+    /**
+     * Inserts a location, or updates the one with the same location setting if any of its
+     * values differ.  The HTTP validators are written like the rest, but don't count as a
+     * change: a server that hands out a new ETag for the same forecast changes nothing anyone
+     * sees, and shouldn't wake the location's observers or empty the query cache.
+     *
+     * @return the _id of the location, and 1 if the row was inserted or any of its values
+     * besides the validators changed, or 0 otherwise.
+     */
+    private long[] upsertLocation(SQLiteDatabase db, ContentValues values) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                null,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)},
+                null,
+                null,
+                null);
+        ContentValues stored = null;
+        try {
+            if (cursor.moveToFirst()) {
+                stored = new ContentValues();
+                cursorRowToTypedValues(cursor, stored);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (stored == null) {
+            long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            if (_id == -1) {
+                throw new android.database.SQLException("Failed to insert location " + values);
+            }
+            return new long[]{_id, 1};
+        }
+        long _id = stored.getAsLong(WeatherContract.LocationEntry._ID);
+        ContentValues withoutValidators = new ContentValues(values);
+        withoutValidators.remove(WeatherContract.LocationEntry.COLUMN_ETAG);
+        withoutValidators.remove(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED);
+        boolean changed = !sameValues(withoutValidators, stored);
+        if (changed || !sameValues(values, stored)) {
+            db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                    WeatherContract.LocationEntry._ID + " = ?", new String[]{Long.toString(_id)});
+        }
+        return new long[]{_id, changed ? 1 : 0};
+    }
+
+    /**
+     * @return the _id of the location with the given setting.
+     */
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = mLocationCache.getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new IllegalArgumentException("Unknown location " + locationSetting);
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the location setting of the location with the given _id, or null if there is none.
+     */
+    private static String getLocationSetting(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes 3-hour forecast rows through one compiled statement in one transaction.  A row for
+     * a slot that is already stored replaces it: they are too many and change too often for
+     * the compare that upsertWeather() does to pay off.
+     *
+     * @return the number of rows written.
+     */
+    private static int insertHourly(SQLiteDatabase db, ContentValues[] values) {
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                + WeatherContract.HourlyEntry.TABLE_NAME + " ("
+                + WeatherContract.HourlyEntry._ID + ", "
+                + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", "
+                + WeatherContract.HourlyEntry.COLUMN_EPOCH_HOUR + ", "
+                + WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherContract.HourlyEntry.COLUMN_TEMP + ", "
+                + WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", "
+                + WeatherContract.HourlyEntry.COLUMN_PRESSURE + ", "
+                + WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherContract.HourlyEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long locationId = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+                long epochHour = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_EPOCH_HOUR);
+                insert.clearBindings();
+                insert.bindLong(1, WeatherContract.HourlyEntry.buildKey(locationId, epochHour));
+                insert.bindLong(2, locationId);
+                insert.bindLong(3, epochHour);
+                insert.bindLong(4, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID));
+                insert.bindLong(5, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_TEMP));
+                bindNullableLong(insert, 6, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_HUMIDITY));
+                bindNullableLong(insert, 7, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_PRESSURE));
+                bindNullableLong(insert, 8, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED));
+                bindNullableLong(insert, 9, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_DEGREES));
+                if (insert.executeInsert() != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        return returnCount;
+    }
+
+    private static void bindNullableLong(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    /**
+     * Deletes the 3-hour slots that start before epochHour.  A location's slots are one range of
+     * keys, so this is a range delete per location rather than a scan of the whole table.
+     *
+     * @return the number of rows deleted.
+     */
+    private static int deleteHourlyBefore(SQLiteDatabase db, long epochHour) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                null,
+                null,
+                null,
+                null,
+                null);
+        int rowsDeleted = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(0);
+                rowsDeleted += db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                        WeatherContract.HourlyEntry._ID + " >= ? AND "
+                                + WeatherContract.HourlyEntry._ID + " < ?",
+                        new String[]{
+                                Long.toString(WeatherContract.HourlyEntry.buildKey(locationId, 0)),
+                                Long.toString(WeatherContract.HourlyEntry.buildKey(locationId, epochHour))});
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowsDeleted;
+    }
+
+    private static ContentValues[] getContentValuesArray(Bundle extras, String key) {
+        Parcelable[] parcelables = extras.getParcelableArray(key);
+        if (parcelables == null) {
+            return new ContentValues[0];
+        }
+        ContentValues[] values = new ContentValues[parcelables.length];
+        for (int i = 0; i < parcelables.length; i++) {
+            values[i] = (ContentValues) parcelables[i];
+        }
+        return values;
+    }
+
+    // The weather columns a sync or delta row carries, in the order the compiled statements of
+    // upsertWeather() bind them
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+    };
+
+    private static final String SQL_INSERT_WEATHER;
+    private static final String SQL_UPDATE_WEATHER;
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+        StringBuilder update = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+        for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+            String separator = i == 0 ? "" : ", ";
+            insert.append(separator).append(WEATHER_COLUMNS[i]);
+            update.append(separator).append(WEATHER_COLUMNS[i]).append(" = ?");
+        }
+        insert.append(") VALUES (");
+        for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+            insert.append(i == 0 ? "?" : ", ?");
+        }
+        SQL_INSERT_WEATHER = insert.append(")").toString();
+        SQL_UPDATE_WEATHER = update.append(" WHERE ")
+                .append(WeatherContract.WeatherEntry._ID).append(" = ?").toString();
+    }
+
+    /**
+     * @return whether the row has exactly WEATHER_COLUMNS, and so can go through the compiled
+     * statements.
+     */
+    private static boolean hasWeatherColumns(ContentValues value) {
+        if (value.size() != WEATHER_COLUMNS.length) {
+            return false;
+        }
+        for (String column : WEATHER_COLUMNS) {
+            if (!value.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void bindWeatherColumns(SQLiteStatement statement, ContentValues value) {
+        statement.clearBindings();
+        for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, value.get(WEATHER_COLUMNS[i]));
+        }
+    }
+
+    /**
+     * Writes weather rows in one transaction, but only the ones that differ from what is
+     * already stored for their location and date.  Changed rows are updated in place, so they
+     * keep their _id, and rows for new days are inserted.  Rows identical to the stored ones are
+     * not touched at all.
+     *
+     * Rows with the usual columns are written through one compiled insert and one compiled
+     * update for the whole batch, bound by position; any other row goes through insert() and
+     * update(), which build their SQL from its columns.
+     *
+     * @param changedLocationIds If not null, receives the location of every row written.
+     * @param changedDates If not null, receives the date of every row written.
+     * @return the number of rows written.
+     */
+    private int upsertWeather(SQLiteDatabase db, ContentValues[] values,
+                              List<Long> changedLocationIds, List<Long> changedDates) {
+        // Group the rows by location, so each location costs one query for its stored rows
+        LinkedHashMap<Long, ArrayList<ContentValues>> rowsByLocation =
+                new LinkedHashMap<Long, ArrayList<ContentValues>>();
+        WeatherContract.DateNormalizer dateNormalizer = new WeatherContract.DateNormalizer();
+        for (ContentValues value : values) {
+            Long dateValue = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (dateValue != null) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        dateNormalizer.normalize(dateValue));
+            }
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            ArrayList<ContentValues> rows = rowsByLocation.get(locationId);
+            if (rows == null) {
+                rows = new ArrayList<ContentValues>();
+                rowsByLocation.put(locationId, rows);
+            }
+            rows.add(value);
+        }
+
+        int returnCount = 0;
+        SQLiteStatement insert = null;
+        SQLiteStatement update = null;
+        db.beginTransaction();
+        try {
+            for (Map.Entry<Long, ArrayList<ContentValues>> entry : rowsByLocation.entrySet()) {
+                Long locationId = entry.getKey();
+                ArrayList<ContentValues> rows = entry.getValue();
+                HashMap<Long, ContentValues> stored = locationId == null
+                        ? new HashMap<Long, ContentValues>()
+                        : getStoredWeather(db, locationId, rows);
+
+                for (ContentValues value : rows) {
+                    Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                    ContentValues storedValue = stored.get(date);
+                    boolean compiled = hasWeatherColumns(value);
+                    if (storedValue != null) {
+                        if (sameValues(value, storedValue)) {
+                            continue;
+                        }
+                        if (compiled) {
+                            if (update == null) {
+                                update = db.compileStatement(SQL_UPDATE_WEATHER);
+                            }
+                            bindWeatherColumns(update, value);
+                            update.bindLong(WEATHER_COLUMNS.length + 1,
+                                    storedValue.getAsLong(WeatherContract.WeatherEntry._ID));
+                            update.execute();
+                        } else {
+                            db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                                    WeatherContract.WeatherEntry._ID + " = ?",
+                                    new String[]{storedValue.getAsString(WeatherContract.WeatherEntry._ID)});
+                        }
+                        ContentValues updated = new ContentValues(value);
+                        updated.put(WeatherContract.WeatherEntry._ID,
+                                storedValue.getAsLong(WeatherContract.WeatherEntry._ID));
+                        stored.put(date, updated);
+                    } else {
+                        long _id;
+                        if (compiled) {
+                            if (insert == null) {
+                                insert = db.compileStatement(SQL_INSERT_WEATHER);
+                            }
+                            bindWeatherColumns(insert, value);
+                            try {
+                                _id = insert.executeInsert();
+                            } catch (SQLException e) {
+                                // What insert() does with a row that breaks a constraint
+                                _id = -1;
+                            }
+                        } else {
+                            _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        }
+                        if (_id == -1) {
+                            continue;
+                        }
+                        // A repeat of this date later in the batch compares against this row
+                        storedValue = new ContentValues(value);
+                        storedValue.put(WeatherContract.WeatherEntry._ID, _id);
+                        stored.put(date, storedValue);
+                    }
+                    returnCount++;
+                    if (changedLocationIds != null) {
+                        changedLocationIds.add(locationId);
+                    }
+                    if (changedDates != null) {
+                        changedDates.add(date);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (insert != null) {
+                insert.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+        }
+        return returnCount;
+    }
+
+    /**
+     * @return the stored weather of a location covering the dates of the given rows, keyed by
+     * date, with each row's _id included.
+     */
+    private HashMap<Long, ContentValues> getStoredWeather(SQLiteDatabase db, long locationId,
+                                                          List<ContentValues> rows) {
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        for (ContentValues value : rows) {
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (date != null) {
+                minDate = Math.min(minDate, date);
+                maxDate = Math.max(maxDate, date);
+            }
+        }
+        HashMap<Long, ContentValues> stored = new HashMap<Long, ContentValues>();
+        if (minDate > maxDate) {
+            return stored;
+        }
+
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?",
+                new String[]{Long.toString(locationId), Long.toString(minDate), Long.toString(maxDate)},
+                null,
+                null,
+                null);
+        try {
+            int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                ContentValues storedValue = new ContentValues();
+                cursorRowToTypedValues(cursor, storedValue);
+                stored.put(cursor.getLong(dateIndex), storedValue);
+            }
+        } finally {
+            cursor.close();
+        }
+        return stored;
+    }
+
+    /**
+     * Copies the current row of cursor into values with the types SQLite stored them as.
+     * DatabaseUtils.cursorRowToContentValues() reads every number back as a string, which the
+     * cursor window formats to about six significant digits, so a coordinate like 37.38605
+     * would never compare equal to what was written.
+     */
+    @SuppressLint("InlinedApi")
+    private static void cursorRowToTypedValues(Cursor cursor, ContentValues values) {
+        String[] columns = cursor.getColumnNames();
+        for (int i = 0; i < columns.length; i++) {
+            switch (getType(cursor, i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(columns[i]);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(columns[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(columns[i], cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(columns[i], cursor.getBlob(i));
+                    break;
+                default:
+                    values.put(columns[i], cursor.getString(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the type of a column of the current row, as Cursor.getType() does from
+     * Honeycomb on.  Before that, the window under a database cursor can tell.
+     */
+    @SuppressLint("InlinedApi")
+    @SuppressWarnings("deprecation")
+    private static int getType(Cursor cursor, int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return cursor.getType(index);
+        }
+        AbstractWindowedCursor windowedCursor = (AbstractWindowedCursor) cursor;
+        if (windowedCursor.isNull(index)) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (windowedCursor.isLong(index)) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        } else if (windowedCursor.isFloat(index)) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (windowedCursor.isBlob(index)) {
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    /**
+     * Compares an incoming row with a stored one, column by column, ignoring stored columns the
+     * incoming row doesn't have.  Numbers are compared by value, as an int written to a REAL
+     * column is stored as a double, and a double to an INTEGER column may be stored as a long.
+     */
+    private static boolean sameValues(ContentValues value, ContentValues storedValue) {
+        for (Map.Entry<String, Object> column : value.valueSet()) {
+            Object incoming = column.getValue();
+            Object stored = storedValue.get(column.getKey());
+            if (incoming == null || stored == null) {
+                if (incoming != stored) {
+                    return false;
+                }
+            } else if (incoming instanceof Number) {
+                double storedNumber;
+                if (stored instanceof Number) {
+                    storedNumber = ((Number) stored).doubleValue();
+                } else {
+                    try {
+                        storedNumber = Double.parseDouble(stored.toString());
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                if (((Number) incoming).doubleValue() != storedNumber) {
+                    return false;
+                }
+            } else if (!incoming.toString().equals(stored.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -16,19 +16,18 @@
 
 package com.example.android.sunshine.app.gcm;
 
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastDelta;
+import com.example.android.sunshine.app.sync.ForecastFanOut;
+import com.example.android.sunshine.app.sync.ForecastSnapshot;
+import com.example.android.sunshine.app.sync.SyncMetrics;
+import com.example.android.sunshine.app.sync.WearPublisher;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -38,6 +37,7 @@ public class MyGcmListenerService extends GcmListenerService {
 
     private static final String TAG = "MyGcmListenerService";
 
+    private static final String EXTRA_TYPE = "type";
     private static final String EXTRA_DATA = "data";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
@@ -62,14 +62,16 @@ public class MyGcmListenerService extends GcmListenerService {
             }
             // Not a bad idea to check that the message is coming from your server.
             if ((senderId).equals(from)) {
-                // Process message and then post a notification of the received message.
+                if (ForecastDelta.MESSAGE_TYPE.equals(data.getString(EXTRA_TYPE))) {
+                    applyForecastDelta(data.getString(EXTRA_DATA));
+                    return;
+                }
+                // Process message and then fold it into the alert notification.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
                     String weather = jsonObject.getString(EXTRA_WEATHER);
                     String location = jsonObject.getString(EXTRA_LOCATION);
-                    String alert =
-                            String.format(getString(R.string.gcm_weather_alert), weather, location);
-                    sendNotification(alert);
+                    new WeatherAlertBatcher(this).onAlert(weather, location);
                 } catch (JSONException e) {
                     // JSON parsing failed, so we just let this message go, since GCM is not one
                     // of our critical features.
@@ -80,31 +82,43 @@ public class MyGcmListenerService extends GcmListenerService {
     }
 
     /**
-     *  Put the message into a notification and post it.
-     *  This is just one simple example of what you might choose to do with a GCM message.
-     *
-     * @param message The alert message to be posted.
+     * Stores the days a forecast delta carries and, if the preferred location changed, refreshes
+     * the widgets, Muzei and the watch, the same way a sync that fetched those days would.
+     * A delta that doesn't check out is dropped; the next sync will bring the days anyway.
      */
-    private void sendNotification(String message) {
-        NotificationManager mNotificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        PendingIntent contentIntent =
-                PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+    private void applyForecastDelta(String json) {
+        if (json == null) {
+            return;
+        }
+        ForecastDelta delta;
+        try {
+            delta = ForecastDelta.parse(json, ForecastDelta.getTodayJulianDay());
+        } catch (JSONException e) {
+            Log.w(TAG, "Dropping forecast delta: " + e.getMessage());
+            return;
+        }
 
-        // Notifications using both a large and a small icon (which yours should!) need the large
-        // icon as a bitmap. So we need to create that here from the resource ID, and pass the
-        // object along in our notification builder. Generally, you want to use the app icon as the
-        // small icon, so that users understand what app is triggering this notification.
-        Bitmap largeIcon = BitmapFactory.decodeResource(this.getResources(), R.drawable.art_storm);
-        NotificationCompat.Builder mBuilder =
-                new NotificationCompat.Builder(this)
-                        .setSmallIcon(R.drawable.art_clear)
-                        .setLargeIcon(largeIcon)
-                        .setContentTitle("Weather Alert!")
-                        .setStyle(new NotificationCompat.BigTextStyle().bigText(message))
-                        .setContentText(message)
-                        .setPriority(NotificationCompat.PRIORITY_HIGH);
-        mBuilder.setContentIntent(contentIntent);
-        mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+        SyncMetrics metrics = new SyncMetrics();
+        long start = System.nanoTime();
+        int changed = delta.apply(this);
+        metrics.record(WeatherContract.SyncMetricsEntry.PHASE_GCM_DELTA, delta.locationSetting,
+                (System.nanoTime() - start) / 1000, json.length(),
+                changed < 0 ? WeatherContract.SyncMetricsEntry.OUTCOME_ERROR
+                        : WeatherContract.SyncMetricsEntry.OUTCOME_OK);
+        if (changed < 0) {
+            Log.d(TAG, "Forecast delta for " + delta.locationSetting + ", which we don't have");
+        } else if (changed > 0 && delta.locationSetting.equals(Utility.getPreferredLocation(this))) {
+            ForecastSnapshot snapshot = ForecastSnapshot.query(this, delta.locationSetting);
+            ForecastSnapshot.setLatest(snapshot);
+            WearPublisher wear = new WearPublisher(this);
+            try {
+                new ForecastFanOut(this, wear).publish(snapshot, metrics, true);
+            } finally {
+                wear.disconnect();
+            }
+        }
+        Log.d(TAG, "Forecast delta for " + delta.locationSetting + ": " + changed + " of "
+                + delta.days.size() + " days changed");
+        metrics.flush(getContentResolver());
     }
-}
\ No newline at end of file
+}
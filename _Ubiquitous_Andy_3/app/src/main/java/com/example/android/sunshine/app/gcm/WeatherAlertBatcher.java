@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns GCM weather alerts into a single notification.
+ *
+ * Severe weather comes with bursts of pushes.  An alert for a location that already had one
+ * in the last COALESCE_WINDOW_MILLIS takes over that location's line instead of adding one,
+ * and updates the notification without sounding again; an alert identical to the one showing
+ * for its location isn't posted at all, for as long as the line is showing.  Every location with a live alert gets a line of one inbox-style
+ * notification.  The alerts showing are kept in SharedPreferences, as the GCM service doesn't
+ * outlive a message for long, and dropped when the notification is dismissed.
+ */
+public class WeatherAlertBatcher {
+    private static final String LOG_TAG = WeatherAlertBatcher.class.getSimpleName();
+
+    // Alerts for the same location this close together collapse into one line
+    static final long COALESCE_WINDOW_MILLIS = 10 * 60 * 1000;
+    // Alerts older than this have said what they had to say, and drop off the notification
+    static final long MAX_ALERT_AGE_MILLIS = 6 * 60 * 60 * 1000;
+    // About as many lines as an expanded inbox-style notification shows
+    static final int MAX_ALERTS = 5;
+
+    private static final String PREFS_NAME = "weather_alerts";
+    private static final String PREF_ALERTS = "alerts";
+    private static final String PREF_RECEIVED = "received";
+    private static final String PREF_POSTED = "posted";
+    private static final String PREF_COLLAPSED = "collapsed";
+    private static final String PREF_DUPLICATES = "duplicates";
+
+    // What to do with the notification after an alert
+    static final int POST = 0;
+    static final int POST_QUIETLY = 1;
+    static final int SKIP = 2;
+
+    // Alerts come in on GCM's worker threads, and each one rewrites the stored list
+    private static final Object sLock = new Object();
+
+    // Decoded large icons, keyed by resource id, so a burst of alerts decodes each once
+    private static final LruCache<Integer, Bitmap> sLargeIcons = new LruCache<Integer, Bitmap>(4);
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public WeatherAlertBatcher(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The latest alert for one location, and how many came in for it in a row.
+     */
+    static class Alert {
+        final String location;
+        String weather;
+        long lastMillis;
+        int count;
+
+        Alert(String location, String weather, long lastMillis, int count) {
+            this.location = location;
+            this.weather = weather;
+            this.lastMillis = lastMillis;
+            this.count = count;
+        }
+
+        String serialize() {
+            return clean(location) + "\t" + clean(weather) + "\t" + lastMillis + "\t" + count;
+        }
+
+        static Alert deserialize(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Alert(fields[0], fields[1], Long.parseLong(fields[2]),
+                        Integer.parseInt(fields[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static String clean(String value) {
+            return value.replace('\t', ' ').replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Takes in one alert and updates the notification to match.
+     */
+    public void onAlert(String weather, String location) {
+        synchronized (sLock) {
+            long now = System.currentTimeMillis();
+            ArrayList<Alert> alerts = readAlerts();
+            int action = add(alerts, location, weather, now);
+
+            SharedPreferences.Editor editor = mPrefs.edit()
+                    .putString(PREF_ALERTS, join(alerts))
+                    .putLong(PREF_RECEIVED, mPrefs.getLong(PREF_RECEIVED, 0) + 1);
+            if (action == SKIP) {
+                editor.putLong(PREF_DUPLICATES, mPrefs.getLong(PREF_DUPLICATES, 0) + 1);
+            } else {
+                if (action == POST_QUIETLY) {
+                    editor.putLong(PREF_COLLAPSED, mPrefs.getLong(PREF_COLLAPSED, 0) + 1);
+                }
+                editor.putLong(PREF_POSTED, mPrefs.getLong(PREF_POSTED, 0) + 1);
+            }
+            editor.commit();
+
+            if (action != SKIP) {
+                post(alerts, action == POST_QUIETLY);
+            } else {
+                Log.d(LOG_TAG, "Dropping repeated alert for " + location);
+            }
+        }
+    }
+
+    /**
+     * Forgets the alerts showing, once the user has dismissed them.
+     */
+    public void clear() {
+        synchronized (sLock) {
+            mPrefs.edit().remove(PREF_ALERTS).commit();
+        }
+    }
+
+    /**
+     * Adds an alert to the ones showing, newest first, dropping any that are too old or too
+     * many.
+     *
+     * @return POST for an alert that should sound, POST_QUIETLY for one that only updates the
+     * notification, or SKIP for one that repeats what it already says.
+     */
+    static int add(List<Alert> alerts, String location, String weather, long now) {
+        for (int i = alerts.size() - 1; i >= 0; i--) {
+            if (now - alerts.get(i).lastMillis > MAX_ALERT_AGE_MILLIS) {
+                alerts.remove(i);
+            }
+        }
+
+        int action = POST;
+        Alert alert = null;
+        for (int i = 0; i < alerts.size(); i++) {
+            if (alerts.get(i).location.equals(location)) {
+                alert = alerts.remove(i);
+                break;
+            }
+        }
+        if (alert != null && (alert.weather.equals(weather)
+                || now - alert.lastMillis <= COALESCE_WINDOW_MILLIS)) {
+            action = alert.weather.equals(weather) ? SKIP : POST_QUIETLY;
+            alert.weather = weather;
+            alert.lastMillis = now;
+            alert.count++;
+        } else {
+            alert = new Alert(location, weather, now, 1);
+        }
+        alerts.add(0, alert);
+
+        while (alerts.size() > MAX_ALERTS) {
+            alerts.remove(alerts.size() - 1);
+        }
+        return action;
+    }
+
+    private void post(List<Alert> alerts, boolean quietly) {
+        int messages = 0;
+        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
+        String[] lines = new String[alerts.size()];
+        for (int i = 0; i < alerts.size(); i++) {
+            Alert alert = alerts.get(i);
+            lines[i] = String.format(mContext.getString(R.string.gcm_weather_alert),
+                    alert.weather, alert.location);
+            if (alert.count > 1) {
+                lines[i] = mContext.getString(R.string.gcm_weather_alert_collapsed,
+                        lines[i], alert.count);
+            }
+            inboxStyle.addLine(lines[i]);
+            messages += alert.count;
+        }
+
+        PendingIntent contentIntent = PendingIntent.getActivity(mContext, 0,
+                new Intent(mContext, MainActivity.class), 0);
+        PendingIntent deleteIntent = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(mContext, WeatherAlertDismissReceiver.class), 0);
+
+        // Notifications using both a large and a small icon (which yours should!) need the large
+        // icon as a bitmap. So we need to create that here from the resource ID, and pass the
+        // object along in our notification builder. Generally, you want to use the app icon as the
+        // small icon, so that users understand what app is triggering this notification.
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext)
+                .setSmallIcon(R.drawable.art_clear)
+                .setLargeIcon(getLargeIcon(mContext.getResources(), R.drawable.art_storm))
+                .setContentTitle("Weather Alert!")
+                .setContentText(lines[0])
+                .setNumber(messages)
+                .setOnlyAlertOnce(quietly)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setContentIntent(contentIntent)
+                .setDeleteIntent(deleteIntent);
+        if (alerts.size() == 1) {
+            builder.setStyle(new NotificationCompat.BigTextStyle().bigText(lines[0]));
+        } else {
+            builder.setStyle(inboxStyle.setSummaryText(mContext.getResources().getQuantityString(
+                    R.plurals.gcm_weather_alert_summary, messages, messages)));
+        }
+
+        NotificationManager notificationManager =
+                (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(MyGcmListenerService.NOTIFICATION_ID, builder.build());
+    }
+
+    private static Bitmap getLargeIcon(Resources resources, int resourceId) {
+        Bitmap icon = sLargeIcons.get(resourceId);
+        if (icon == null) {
+            icon = BitmapFactory.decodeResource(resources, resourceId);
+            sLargeIcons.put(resourceId, icon);
+        }
+        return icon;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Weather alerts:");
+        writer.println(String.format(Locale.US,
+                "  %d received, %d posted, %d collapsed into a posted line, %d duplicates dropped",
+                mPrefs.getLong(PREF_RECEIVED, 0), mPrefs.getLong(PREF_POSTED, 0),
+                mPrefs.getLong(PREF_COLLAPSED, 0), mPrefs.getLong(PREF_DUPLICATES, 0)));
+        for (Alert alert : readAlerts()) {
+            writer.println("  showing: " + alert.serialize().replace('\t', ' '));
+        }
+    }
+
+    private ArrayList<Alert> readAlerts() {
+        ArrayList<Alert> alerts = new ArrayList<Alert>();
+        for (String line : mPrefs.getString(PREF_ALERTS, "").split("\n")) {
+            Alert alert = Alert.deserialize(line);
+            if (alert != null) {
+                alerts.add(alert);
+            }
+        }
+        return alerts;
+    }
+
+    private static String join(List<Alert> alerts) {
+        StringBuilder sb = new StringBuilder();
+        for (Alert alert : alerts) {
+            sb.append(alert.serialize()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The days of one location's forecast that changed, as pushed by our server, so a device can
+ * take them in without fetching the whole forecast.  It looks like this:
+ *
+ * {"location":"94043","days":[{"day":2457378,"id":800,"main":"Clear","max":21.3,"min":10.1,
+ *   "humidity":81,"pressure":1013.2,"speed":1.2,"deg":270}, ...]}
+ *
+ * "day" is a Julian day number, which unlike a timestamp means the same day whatever the
+ * device's time zone; the rest are the values OWM has for a day.  Every day carries all of
+ * them, as each one replaces the stored row for its date.
+ *
+ * A delta is applied through METHOD_APPLY_SYNC like a sync is, so unchanged days aren't
+ * rewritten and observers are told once.  Only locations we already store take deltas.
+ */
+public class ForecastDelta {
+
+    // The GCM message type a delta comes in
+    public static final String MESSAGE_TYPE = "forecast_delta";
+
+    // The most days a delta may carry, which is as many as a sync fetches
+    public static final int MAX_DAYS = 14;
+
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_DAYS = "days";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_WEATHER_ID = "id";
+    private static final String KEY_DESCRIPTION = "main";
+    private static final String KEY_MAX = "max";
+    private static final String KEY_MIN = "min";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND_SPEED = "speed";
+    private static final String KEY_DEGREES = "deg";
+
+    public final String locationSetting;
+    // Weather rows in day order, carrying COLUMN_LOCATION_SETTING instead of COLUMN_LOC_KEY
+    public final List<ContentValues> days;
+
+    private ForecastDelta(String locationSetting, List<ContentValues> days) {
+        this.locationSetting = locationSetting;
+        this.days = Collections.unmodifiableList(days);
+    }
+
+    /**
+     * Parses and checks a delta.  Anything out of place rejects the whole of it: a delta that
+     * is only partly right can't be told apart from one that is wrong.
+     *
+     * @param todayJulianDay The device's Julian day today.  Days before yesterday or past the
+     * forecast's reach are rejected.
+     */
+    public static ForecastDelta parse(String json, int todayJulianDay) throws JSONException {
+        JSONObject deltaJson = new JSONObject(json);
+        String locationSetting = deltaJson.getString(KEY_LOCATION);
+        if (locationSetting.length() == 0) {
+            throw new JSONException("Forecast delta has no location");
+        }
+        JSONArray daysJson = deltaJson.getJSONArray(KEY_DAYS);
+        if (daysJson.length() == 0 || daysJson.length() > MAX_DAYS) {
+            throw new JSONException("Forecast delta has " + daysJson.length() + " days");
+        }
+
+        Time dayTime = new Time();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        ArrayList<ContentValues> days = new ArrayList<ContentValues>(daysJson.length());
+        for (int i = 0; i < daysJson.length(); i++) {
+            JSONObject dayJson = daysJson.getJSONObject(i);
+            int julianDay = dayJson.getInt(KEY_DAY);
+            // Yesterday is let through, as the server may be a time zone ahead of us
+            if (julianDay < todayJulianDay - 1 || julianDay >= todayJulianDay + MAX_DAYS) {
+                throw new JSONException("Forecast delta day " + julianDay + " is out of range");
+            }
+            if (!seen.add(julianDay)) {
+                throw new JSONException("Forecast delta has day " + julianDay + " twice");
+            }
+
+            double high = getFinite(dayJson, KEY_MAX);
+            double low = getFinite(dayJson, KEY_MIN);
+            if (low > high) {
+                throw new JSONException("Forecast delta day " + julianDay + " is colder at its high");
+            }
+            double humidity = getFinite(dayJson, KEY_HUMIDITY);
+            double windSpeed = getFinite(dayJson, KEY_WIND_SPEED);
+            double degrees = getFinite(dayJson, KEY_DEGREES);
+            if (humidity < 0 || humidity > 100 || windSpeed < 0 || degrees < 0 || degrees > 360) {
+                throw new JSONException("Forecast delta day " + julianDay + " is out of range");
+            }
+            int weatherId = dayJson.getInt(KEY_WEATHER_ID);
+            if (Utility.getIconResourceForWeatherCondition(weatherId) == -1) {
+                throw new JSONException("Forecast delta has unknown weather id " + weatherId);
+            }
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            // The same conversion the sync makes, so the delta lands on the stored row
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianDay));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, dayJson.getString(KEY_DESCRIPTION));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, getFinite(dayJson, KEY_PRESSURE));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, degrees);
+            days.add(weatherValues);
+        }
+        return new ForecastDelta(locationSetting, days);
+    }
+
+    private static double getFinite(JSONObject json, String key) throws JSONException {
+        // getDouble() takes the strings "NaN" and "Infinity" at their word
+        double value = json.getDouble(key);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Forecast delta " + key + " is " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @return today's Julian day on this device, as the sync counts it.
+     */
+    public static int getTodayJulianDay() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
+
+    /**
+     * Writes the delta's days, skipping any that hold what's stored already.
+     *
+     * @return the number of days that changed, or -1 if we don't store the location.
+     */
+    public int apply(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        long locationId = LocationCache.getInstance(context).getId(locationSetting);
+        if (locationId == -1) {
+            locationId = queryLocationId(resolver);
+            if (locationId == -1) {
+                return -1;
+            }
+        }
+
+        // Copies, as the provider rewrites the rows it's handed
+        ContentValues[] rows = new ContentValues[days.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues(days.get(i));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES, rows);
+            Bundle applied = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_APPLY_SYNC, null, extras);
+            return applied.getLongArray(WeatherContract.EXTRA_CHANGED_DATES).length;
+        }
+        for (ContentValues row : rows) {
+            row.remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            row.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        }
+        // bulkInsert skips unchanged rows too, and counts the rest
+        return resolver.bulkInsert(WeatherEntry.CONTENT_URI, rows);
+    }
+
+    /**
+     * @return the _id of the delta's location, or -1 if we don't store it.
+     */
+    private long queryLocationId(ContentResolver resolver) {
+        Cursor cursor = resolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return -1;
+            }
+            return cursor.getLong(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
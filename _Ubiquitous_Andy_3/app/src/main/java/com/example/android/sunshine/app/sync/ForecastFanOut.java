@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Shows a new forecast for the preferred location everywhere outside the app: the widgets,
+ * Muzei, the daily notification and the watch.  Used by the sync, and by forecast deltas
+ * pushed through GCM, which change the same things without a sync.
+ */
+public class ForecastFanOut {
+    private static final String LOG_TAG = ForecastFanOut.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+    private final Context mContext;
+    private final WearPublisher mWear;
+
+    public ForecastFanOut(Context context, WearPublisher wear) {
+        mContext = context.getApplicationContext();
+        mWear = wear;
+    }
+
+    /**
+     * Hands the snapshot to everyone, timing each of them in metrics.
+     *
+     * @param snapshot The preferred location's forecast, from today on.
+     * @param includeWear Whether to send it to the watch as well, which can block for seconds.
+     * If not, the watch is marked as not having it, and the next sync sends it.
+     */
+    public void publish(ForecastSnapshot snapshot, SyncMetrics metrics, boolean includeWear) {
+        long start = System.nanoTime();
+        updateWidgets(snapshot);
+        start = metrics.recordSince(WeatherContract.SyncMetricsEntry.PHASE_FAN_OUT_WIDGETS, start);
+        updateMuzei(snapshot);
+        start = metrics.recordSince(WeatherContract.SyncMetricsEntry.PHASE_FAN_OUT_MUZEI, start);
+        notifyWeather(snapshot);
+        start = metrics.recordSince(WeatherContract.SyncMetricsEntry.PHASE_FAN_OUT_NOTIFICATION, start);
+        if (includeWear) {
+            mWear.publish(snapshot);
+            metrics.recordSince(WeatherContract.SyncMetricsEntry.PHASE_FAN_OUT_WEAR, start);
+        } else {
+            mWear.markUnsent();
+        }
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_last_published_location),
+                        snapshot.locationSetting)
+                .apply();
+    }
+
+    /**
+     * @return whether what was last published is about a location other than the preferred
+     * one.  Switching to a location whose forecast is stored already leaves it that way, as
+     * the sync then finds nothing new to publish.
+     */
+    public boolean isStale() {
+        return !Utility.getPreferredLocation(mContext).equals(getPublishedLocation());
+    }
+
+    /**
+     * @return the location of the snapshot last published, or null if there hasn't been one.
+     */
+    String getPublishedLocation() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getString(mContext.getString(R.string.pref_last_published_location), null);
+    }
+
+    private void updateWidgets(ForecastSnapshot snapshot) {
+        // Setting the package ensures that only components in our app will receive the broadcast
+        Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                .setPackage(mContext.getPackageName())
+                .putExtra(ForecastSnapshot.EXTRA_SNAPSHOT, snapshot);
+        mContext.sendBroadcast(dataUpdatedIntent);
+    }
+
+    private void updateMuzei(ForecastSnapshot snapshot) {
+        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+        // Muzei background on lower API level devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            mContext.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setClass(mContext, WeatherMuzeiSource.class)
+                    .putExtra(ForecastSnapshot.EXTRA_SNAPSHOT, snapshot));
+        }
+    }
+
+    private void notifyWeather(ForecastSnapshot snapshot) {
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String displayNotificationsKey = mContext.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(mContext.getString(R.string.pref_enable_notifications_default)));
+
+        if ( displayNotifications ) {
+
+            String lastNotificationKey = mContext.getString(R.string.pref_last_notification);
+            long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                // Last sync was more than 1 day ago, let's send a notification with the weather.
+                ForecastSnapshot.Day today = snapshot.getToday();
+
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    double high = today.high;
+                    double low = today.low;
+                    String desc = today.shortDesc;
+
+                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                    Resources resources = mContext.getResources();
+                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                    String artUrl = Utility.getArtUrlForWeatherCondition(mContext, weatherId);
+
+                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                    // Prior to that, we use a fixed size
+                    @SuppressLint("InlinedApi")
+                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                    @SuppressLint("InlinedApi")
+                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                    // Retrieve the large icon
+                    Bitmap largeIcon;
+                    try {
+                        largeIcon = Glide.with(mContext)
+                                .load(artUrl)
+                                .asBitmap()
+                                .error(artResourceId)
+                                .fitCenter()
+                                .into(largeIconWidth, largeIconHeight).get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                    }
+                    String title = mContext.getString(R.string.app_name);
+
+                    // Define the text of the forecast.
+                    String contentText = String.format(mContext.getString(R.string.format_notification),
+                            desc,
+                            Utility.formatTemperature(mContext, high),
+                            Utility.formatTemperature(mContext, low));
+
+                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                    // notifications.  Just throw in some data.
+                    NotificationCompat.Builder mBuilder =
+                            new NotificationCompat.Builder(mContext)
+                                    .setColor(resources.getColor(R.color.primary_light))
+                                    .setSmallIcon(iconId)
+                                    .setLargeIcon(largeIcon)
+                                    .setContentTitle(title)
+                                    .setContentText(contentText);
+
+                    // Make something interesting happen when the user clicks on the notification.
+                    // In this case, opening the app is sufficient.
+                    Intent resultIntent = new Intent(mContext, MainActivity.class);
+
+                    // The stack builder object will contain an artificial back stack for the
+                    // started Activity.
+                    // This ensures that navigating backward from the Activity leads out of
+                    // your application to the Home screen.
+                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(mContext);
+                    stackBuilder.addNextIntent(resultIntent);
+                    PendingIntent resultPendingIntent =
+                            stackBuilder.getPendingIntent(
+                                    0,
+                                    PendingIntent.FLAG_UPDATE_CURRENT
+                            );
+                    mBuilder.setContentIntent(resultPendingIntent);
+
+                    NotificationManager mNotificationManager =
+                            (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                    //refreshing last sync
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                    editor.commit();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The small HTTP layer the sync downloads through.  It asks for gzip, sets explicit timeouts and
+ * never calls disconnect(): a response that is read to the end and closed hands its socket back
+ * to HttpURLConnection's keep-alive pool, so the next request of the same sync (another location,
+ * another endpoint) skips the TCP handshake.  The one exception is a sync that is cancelled or
+ * out of time, whose requests are torn down rather than drained.
+ */
+public class ForecastHttpClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private static final String ENCODING_GZIP = "gzip";
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    public ForecastHttpClient() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    public ForecastHttpClient(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Issues a GET and returns once the response headers have arrived.
+     *
+     * @param url The resource to fetch.
+     * @param ifNoneMatch ETag to revalidate against, or null.
+     * @param ifModifiedSince Last-Modified value to revalidate against, or null.
+     * @return the response, which the caller must close.
+     */
+    public Response get(URL url, String ifNoneMatch, String ifModifiedSince) throws IOException {
+        return get(url, ifNoneMatch, ifModifiedSince, null);
+    }
+
+    /**
+     * Like get(URL, String, String), but gives up when the sync's deadline passes.  The
+     * timeouts are cut down to the time the sync has left, the body checks the deadline on
+     * every read, and cancelling the sync aborts the request.
+     *
+     * @param deadline The sync's deadline, or null for none.
+     */
+    public Response get(URL url, String ifNoneMatch, String ifModifiedSince, SyncDeadline deadline)
+            throws IOException {
+        return send(url, ifNoneMatch, ifModifiedSince, null, null, deadline);
+    }
+
+    /**
+     * Issues a POST of body and returns once the response headers have arrived.  It shares the
+     * connection pool with the GETs, so a POST to a host the sync just fetched from reuses the
+     * socket.
+     *
+     * @param deadline The sync's deadline, or null for none.
+     * @return the response, which the caller must close.
+     */
+    public Response post(URL url, String contentType, byte[] body, SyncDeadline deadline)
+            throws IOException {
+        return send(url, null, null, contentType, body, deadline);
+    }
+
+    private Response send(URL url, String ifNoneMatch, String ifModifiedSince,
+                          String contentType, byte[] body, SyncDeadline deadline)
+            throws IOException {
+        int connectTimeout = mConnectTimeoutMillis;
+        int readTimeout = mReadTimeoutMillis;
+        if (deadline != null) {
+            deadline.check();
+            // 0 would mean no timeout at all, so never go below 1
+            int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.getRemainingMillis()));
+            connectTimeout = Math.min(connectTimeout, remaining);
+            readTimeout = Math.min(readTimeout, remaining);
+        }
+
+        long start = System.nanoTime();
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod(body != null ? "POST" : "GET");
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(readTimeout);
+        // Setting this ourselves turns off the transparent decompression, which would otherwise
+        // hide the compressed byte count from us
+        urlConnection.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+        if (ifNoneMatch != null) {
+            urlConnection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+        }
+        if (body != null) {
+            urlConnection.setDoOutput(true);
+            urlConnection.setFixedLengthStreamingMode(body.length);
+            urlConnection.setRequestProperty("Content-Type", contentType);
+        }
+        Response response = new Response(urlConnection, deadline);
+        if (deadline != null) {
+            deadline.register(response);
+        }
+        try {
+            urlConnection.connect();
+            long connected = System.nanoTime();
+            checkNotAborted(response, deadline);
+            if (body != null) {
+                OutputStream out = urlConnection.getOutputStream();
+                out.write(body);
+                out.close();
+                checkNotAborted(response, deadline);
+            }
+
+            // getResponseCode() blocks until the status line and headers have been read
+            int code = urlConnection.getResponseCode();
+            long headers = System.nanoTime();
+            response.setHeaders(code, (connected - start) / 1000, (headers - start) / 1000);
+            return response;
+        } catch (IOException e) {
+            if (deadline != null) {
+                deadline.unregister(response);
+                // A connection aborted by the deadline says so, rather than "socket closed"
+                deadline.check();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fails fast if the request was aborted, or its deadline passed, while it was connecting or
+     * sending.  An abort that comes before the socket exists has nothing to disconnect, and the
+     * request would otherwise wait out its timeouts.
+     */
+    private static void checkNotAborted(Response response, SyncDeadline deadline)
+            throws IOException {
+        if (response.isAborted() || (deadline != null && deadline.shouldStop())) {
+            // There is a socket to close now
+            response.abort();
+            if (deadline != null) {
+                deadline.check();
+            }
+            throw new SyncDeadline.SyncAbortedException("Request aborted");
+        }
+    }
+
+    /**
+     * An open response.  Closing it drains whatever is left of the body, which is what lets the
+     * connection go back into the pool.
+     */
+    public static class Response implements Closeable {
+        private final HttpURLConnection mConnection;
+        private final SyncDeadline mDeadline;
+        private int mCode;
+        private long mConnectMicros;
+        private long mTimeToFirstByteMicros;
+        private CountingInputStream mRawStream;
+        private InputStream mBody;
+        private volatile boolean mAborted;
+
+        Response(HttpURLConnection connection, SyncDeadline deadline) {
+            mConnection = connection;
+            mDeadline = deadline;
+        }
+
+        void setHeaders(int code, long connectMicros, long timeToFirstByteMicros) {
+            mCode = code;
+            mConnectMicros = connectMicros;
+            mTimeToFirstByteMicros = timeToFirstByteMicros;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return how long it took to get a connection, new or pooled.
+         */
+        public long getConnectMicros() {
+            return mConnectMicros;
+        }
+
+        /**
+         * @return how long it took from the start of the request until the headers were in,
+         * connecting included.
+         */
+        public long getTimeToFirstByteMicros() {
+            return mTimeToFirstByteMicros;
+        }
+
+        public long getTimeToFirstByteMillis() {
+            return mTimeToFirstByteMicros / 1000;
+        }
+
+        /**
+         * @return how long reading the body has spent waiting on the socket so far.
+         */
+        public long getReadMicros() {
+            return mRawStream == null ? 0 : mRawStream.getReadNanos() / 1000;
+        }
+
+        /**
+         * @return the number of body bytes read off the socket so far, before decompression.
+         */
+        public long getBytesOnWire() {
+            return mRawStream == null ? 0 : mRawStream.getCount();
+        }
+
+        /**
+         * @return the decompressed body.  Error responses come back through the error stream,
+         * so this never throws just because the status isn't 2xx.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream in = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream()
+                        : mConnection.getInputStream();
+                if (in == null) {
+                    return null;
+                }
+                if (mDeadline != null) {
+                    in = mDeadline.wrap(in);
+                }
+                mRawStream = new CountingInputStream(in);
+                mBody = ENCODING_GZIP.equalsIgnoreCase(mConnection.getContentEncoding())
+                        ? new GZIPInputStream(mRawStream)
+                        : mRawStream;
+            }
+            return mBody;
+        }
+
+        /**
+         * Closes the socket under the request, from any thread, which makes a read blocked on
+         * it fail straight away.  The connection is not reused.
+         */
+        void abort() {
+            mAborted = true;
+            mConnection.disconnect();
+        }
+
+        boolean isAborted() {
+            return mAborted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mDeadline != null) {
+                mDeadline.unregister(this);
+                if (mDeadline.shouldStop()) {
+                    // Draining a stalled response is what we're giving up on
+                    abort();
+                }
+            }
+            if (mAborted) {
+                if (mBody != null) {
+                    try {
+                        // The socket is gone, but a gzip body's Inflater still holds native
+                        // memory until it's ended, which closing it does first
+                        mBody.close();
+                    } catch (IOException e) {
+                        // Expected from the disconnected stream under it
+                    }
+                }
+                return;
+            }
+            InputStream in = mRawStream;
+            if (in == null && mCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nobody read the body, but it still has to come off the socket
+                getBody();
+                in = mRawStream;
+            }
+            if (in != null) {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) != -1) {
+                    // Draining so the connection can be reused
+                }
+                // Closes the raw stream under it too, and ends a gzip body's Inflater
+                mBody.close();
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+        private long mReadNanos;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
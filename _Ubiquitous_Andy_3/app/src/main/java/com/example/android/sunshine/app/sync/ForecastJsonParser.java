@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Parses the OpenWeatherMap daily forecast response into rows ready for the weather table, and
+ * the 3-hour forecast response into rows ready for the hourly table.
+ *
+ * The streaming path pulls tokens straight off the connection's InputStream and writes each day
+ * into its ContentValues row as it goes, so we never hold the whole response as a String nor an
+ * org.json object tree.  The tree path is kept for Gingerbread, which has no JsonReader.
+ */
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // The 3-hour forecast has a slot per element of "list", with the values that a day has at
+    // the top level spread over these objects.  "dt" is the start of the slot in seconds.
+    private static final String OWM_DATE_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+
+    // Every one of these has to be present in a day before we accept it
+    private static final String[] REQUIRED_DAY_COLUMNS = {
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // Pressure, humidity and wind are left out of the odd slot, so only these are required
+    private static final String[] REQUIRED_SLOT_COLUMNS = {
+            HourlyEntry.COLUMN_EPOCH_HOUR,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_WEATHER_ID
+    };
+
+    /**
+     * The parsed response.  Day rows are in server order (the first one is today) and carry
+     * every weather column except the location key and the date, which the caller fills in.
+     */
+    public static class Forecast {
+        public int code = HttpURLConnection.HTTP_OK;
+        public String cityName;
+        public double cityLatitude;
+        public double cityLongitude;
+        public final ArrayList<ContentValues> days = new ArrayList<ContentValues>(16);
+    }
+
+    /**
+     * The parsed 3-hour response.  Slot rows are in server order and carry every hourly column,
+     * already encoded, except the location key.
+     */
+    public static class HourlyForecast {
+        public int code = HttpURLConnection.HTTP_OK;
+        public final ArrayList<ContentValues> slots = new ArrayList<ContentValues>(40);
+    }
+
+    /**
+     * Parses the response by streaming over it.  Malformed or unexpected JSON is reported as a
+     * JSONException so callers can treat both parsers the same way; IOException is left for
+     * genuine network failures.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static Forecast parse(InputStream in) throws IOException, JSONException {
+        Forecast forecast = new Forecast();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        boolean hasCity = false;
+        boolean hasList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, forecast);
+                    hasCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecast.days.add(readDay(reader));
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader signals a token of the wrong type this way
+            throw new JSONException(e.getMessage());
+        } catch (android.util.MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        }
+
+        if (forecast.code == HttpURLConnection.HTTP_OK && (!hasCity || !hasList)) {
+            throw new JSONException("Forecast is missing " + (hasCity ? OWM_LIST : OWM_CITY));
+        }
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean hasCoord = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                hasCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (forecast.cityName == null || !hasCoord) {
+            throw new JSONException("City is missing its name or coordinates");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readDay(JsonReader reader) throws IOException, JSONException {
+        ContentValues weatherValues = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_PRESSURE, reader.nextDouble());
+            } else if (OWM_HUMIDITY.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, reader.nextInt());
+            } else if (OWM_WINDSPEED.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_DEGREES, reader.nextDouble());
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, reader.nextDouble());
+                    } else if (OWM_MIN.equals(tempName)) {
+                        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, reader.nextString());
+                        } else if (OWM_WEATHER_ID.equals(weatherName)
+                                && reader.peek() != JsonToken.NULL) {
+                            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        checkDay(weatherValues);
+        return weatherValues;
+    }
+
+    /**
+     * Parses a 3-hour forecast response by streaming over it, the same way as parse().
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static HourlyForecast parseHourly(InputStream in) throws IOException, JSONException {
+        HourlyForecast forecast = new HourlyForecast();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        boolean hasList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecast.slots.add(readSlot(reader));
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } catch (android.util.MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        }
+
+        if (forecast.code == HttpURLConnection.HTTP_OK && !hasList) {
+            throw new JSONException("Hourly forecast is missing " + OWM_LIST);
+        }
+        return forecast;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readSlot(JsonReader reader) throws IOException, JSONException {
+        ContentValues slotValues = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATE_TIME.equals(name)) {
+                slotValues.put(HourlyEntry.COLUMN_EPOCH_HOUR,
+                        HourlyEntry.getEpochHour(reader.nextLong() * 1000));
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        slotValues.put(HourlyEntry.COLUMN_TEMP,
+                                HourlyEntry.encodeTenths(reader.nextDouble()));
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        slotValues.put(HourlyEntry.COLUMN_PRESSURE,
+                                HourlyEntry.encodeTenths(reader.nextDouble()));
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        slotValues.put(HourlyEntry.COLUMN_HUMIDITY, reader.nextInt());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        slotValues.put(HourlyEntry.COLUMN_WIND_SPEED,
+                                HourlyEntry.encodeTenths(reader.nextDouble()));
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        slotValues.put(HourlyEntry.COLUMN_DEGREES,
+                                (int) Math.round(reader.nextDouble()));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())
+                                && reader.peek() != JsonToken.NULL) {
+                            slotValues.put(HourlyEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        checkSlot(slotValues);
+        return slotValues;
+    }
+
+    /**
+     * Parses a 3-hour forecast response that has already been read into a String, for devices
+     * without JsonReader.
+     */
+    public static HourlyForecast parseHourly(String forecastJsonStr) throws JSONException {
+        HourlyForecast forecast = new HourlyForecast();
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            forecast.code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                return forecast;
+            }
+        }
+
+        JSONArray slotArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < slotArray.length(); i++) {
+            JSONObject slot = slotArray.getJSONObject(i);
+            JSONObject mainObject = slot.getJSONObject(OWM_MAIN);
+            JSONObject weatherObject = slot.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            ContentValues slotValues = new ContentValues();
+            slotValues.put(HourlyEntry.COLUMN_EPOCH_HOUR,
+                    HourlyEntry.getEpochHour(slot.getLong(OWM_DATE_TIME) * 1000));
+            slotValues.put(HourlyEntry.COLUMN_TEMP,
+                    HourlyEntry.encodeTenths(mainObject.getDouble(OWM_TEMPERATURE)));
+            slotValues.put(HourlyEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+            if (mainObject.has(OWM_PRESSURE)) {
+                slotValues.put(HourlyEntry.COLUMN_PRESSURE,
+                        HourlyEntry.encodeTenths(mainObject.getDouble(OWM_PRESSURE)));
+            }
+            if (mainObject.has(OWM_HUMIDITY)) {
+                slotValues.put(HourlyEntry.COLUMN_HUMIDITY, mainObject.getInt(OWM_HUMIDITY));
+            }
+            JSONObject windObject = slot.optJSONObject(OWM_WIND);
+            if (windObject != null) {
+                if (windObject.has(OWM_WINDSPEED)) {
+                    slotValues.put(HourlyEntry.COLUMN_WIND_SPEED,
+                            HourlyEntry.encodeTenths(windObject.getDouble(OWM_WINDSPEED)));
+                }
+                if (windObject.has(OWM_WIND_DIRECTION)) {
+                    slotValues.put(HourlyEntry.COLUMN_DEGREES,
+                            (int) Math.round(windObject.getDouble(OWM_WIND_DIRECTION)));
+                }
+            }
+            forecast.slots.add(slotValues);
+        }
+        return forecast;
+    }
+
+    /**
+     * Parses a response that has already been read into a String by building the org.json
+     * object hierarchy for it.  This is the original parser, kept for devices without JsonReader.
+     */
+    public static Forecast parse(String forecastJsonStr) throws JSONException {
+        Forecast forecast = new Forecast();
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            forecast.code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                return forecast;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        forecast.cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        forecast.cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        forecast.cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble(OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble(OWM_MAX));
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble(OWM_MIN));
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+            forecast.days.add(weatherValues);
+        }
+        return forecast;
+    }
+
+    private static void checkSlot(ContentValues slotValues) throws JSONException {
+        for (String column : REQUIRED_SLOT_COLUMNS) {
+            if (!slotValues.containsKey(column)) {
+                throw new JSONException("Forecast slot is missing " + column);
+            }
+        }
+    }
+
+    private static void checkDay(ContentValues weatherValues) throws JSONException {
+        for (String column : REQUIRED_DAY_COLUMNS) {
+            if (!weatherValues.containsKey(column)) {
+                throw new JSONException("Forecast day is missing " + column);
+            }
+        }
+    }
+}
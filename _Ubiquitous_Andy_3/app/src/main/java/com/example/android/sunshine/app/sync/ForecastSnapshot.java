@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the preferred location's forecast, today and the days after it, for the
+ * widgets, Muzei, the notification and the watch.
+ *
+ * The sync builds one from the rows it just stored and hands it to each of them, in place of
+ * each one querying the provider for the same rows.  The last one built is also kept in memory
+ * for consumers that are only told the data changed, like the detail widget's list.  Anything
+ * that shows up without a current snapshot falls back to load(), which reads the provider once.
+ */
+public class ForecastSnapshot implements Parcelable {
+    public static final String EXTRA_SNAPSHOT = "forecast_snapshot";
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+
+    private static volatile ForecastSnapshot sLatest;
+
+    public final String locationSetting;
+    public final List<Day> days;
+
+    public static class Day {
+        public final long date;
+        public final int weatherId;
+        public final String shortDesc;
+        public final double high;
+        public final double low;
+
+        public Day(long date, int weatherId, String shortDesc, double high, double low) {
+            this.date = date;
+            this.weatherId = weatherId;
+            this.shortDesc = shortDesc;
+            this.high = high;
+            this.low = low;
+        }
+    }
+
+    public ForecastSnapshot(String locationSetting, List<Day> days) {
+        this.locationSetting = locationSetting;
+        this.days = Collections.unmodifiableList(new ArrayList<Day>(days));
+    }
+
+    /**
+     * Builds a snapshot from weather rows as the sync stores them, which must be in date order.
+     */
+    static ForecastSnapshot fromValues(String locationSetting, List<ContentValues> rows) {
+        ArrayList<Day> days = new ArrayList<Day>(rows.size());
+        for (ContentValues values : rows) {
+            days.add(new Day(
+                    values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                    values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                    values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                    values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+        }
+        return new ForecastSnapshot(locationSetting, days);
+    }
+
+    public static void setLatest(ForecastSnapshot snapshot) {
+        sLatest = snapshot;
+    }
+
+    /**
+     * @return the snapshot for the preferred location from today on: the one from the last sync
+     * if it is still about the preferred location, otherwise one read from the provider.  It has
+     * no days if there's nothing stored.
+     */
+    public static ForecastSnapshot load(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        ForecastSnapshot latest = sLatest;
+        if (latest != null && latest.locationSetting.equals(locationSetting)) {
+            return latest.from(System.currentTimeMillis());
+        }
+        return query(context, locationSetting);
+    }
+
+    /**
+     * @return the snapshot of a location from today on, as the provider has it now.
+     */
+    public static ForecastSnapshot query(Context context, String locationSetting) {
+        ArrayList<Day> days = new ArrayList<Day>();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                FORECAST_COLUMNS,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                days.add(new Day(
+                        cursor.getLong(INDEX_DATE),
+                        cursor.getInt(INDEX_WEATHER_ID),
+                        cursor.getString(INDEX_SHORT_DESC),
+                        cursor.getDouble(INDEX_MAX_TEMP),
+                        cursor.getDouble(INDEX_MIN_TEMP)));
+            }
+            cursor.close();
+        }
+        return new ForecastSnapshot(locationSetting, days);
+    }
+
+    /**
+     * @return this snapshot without the days before the one dateMillis falls on, matching what
+     * a provider query with that start date returns.
+     */
+    public ForecastSnapshot from(long dateMillis) {
+        long start = WeatherContract.normalizeDate(dateMillis);
+        int first = 0;
+        while (first < days.size() && days.get(first).date < start) {
+            first++;
+        }
+        return first == 0 ? this : new ForecastSnapshot(locationSetting,
+                days.subList(first, days.size()));
+    }
+
+    /**
+     * @return the first day of the snapshot, which is today once from() has been applied, or
+     * null if there isn't one.
+     */
+    public Day getToday() {
+        return days.isEmpty() ? null : days.get(0);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(locationSetting);
+        dest.writeInt(days.size());
+        for (Day day : days) {
+            dest.writeLong(day.date);
+            dest.writeInt(day.weatherId);
+            dest.writeString(day.shortDesc);
+            dest.writeDouble(day.high);
+            dest.writeDouble(day.low);
+        }
+    }
+
+    public static final Parcelable.Creator<ForecastSnapshot> CREATOR =
+            new Parcelable.Creator<ForecastSnapshot>() {
+                @Override
+                public ForecastSnapshot createFromParcel(Parcel in) {
+                    String locationSetting = in.readString();
+                    int count = in.readInt();
+                    ArrayList<Day> days = new ArrayList<Day>(count);
+                    for (int i = 0; i < count; i++) {
+                        days.add(new Day(in.readLong(), in.readInt(), in.readString(),
+                                in.readDouble(), in.readDouble()));
+                    }
+                    return new ForecastSnapshot(locationSetting, days);
+                }
+
+                @Override
+                public ForecastSnapshot[] newArray(int size) {
+                    return new ForecastSnapshot[size];
+                }
+            };
+}
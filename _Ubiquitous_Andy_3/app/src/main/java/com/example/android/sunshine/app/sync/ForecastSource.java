@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Where the sync adapter gets forecasts from.  A source only fetches and parses; storing the
+ * result and telling everyone about it stays with the adapter, so every source goes through
+ * the same provider and fan-out path.
+ *
+ * Sources are called from the fetcher's worker threads, several locations at a time.
+ */
+public interface ForecastSource {
+
+    /**
+     * @return the host, or any other name, that requests for this location go to.  Per-host
+     * limits and backoff are keyed on it.
+     */
+    String getEndpoint(String locationSetting);
+
+    /**
+     * Fetches and parses the forecast for one location.  Errors are reported through the status
+     * of the result rather than thrown, running out of time included.
+     *
+     * @param locationSetting The location string used to request updates.
+     * @param etag ETag of the forecast we already have, or null.
+     * @param lastModified Last-Modified of the forecast we already have, or null.
+     * @param deadline The sync's deadline, which the fetch must not run past.
+     */
+    SunshineSyncAdapter.FetchResult fetch(String locationSetting, String etag, String lastModified,
+                                          SyncDeadline deadline);
+}
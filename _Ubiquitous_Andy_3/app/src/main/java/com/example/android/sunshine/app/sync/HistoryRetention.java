@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.format.DateFormat;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Deletes weather older than each location's history window, away from the sync.
+ *
+ * Every location keeps DEFAULT_HISTORY_DAYS days before today unless it has a window of its
+ * own, set with setHistoryDays().  Rows go a batch of BATCH_ROWS at a time, each batch its own
+ * transaction, so a sync that comes in while a long backlog is being cleared waits for one
+ * batch at most.  It runs once a day: as a job that wants the device idle and charging from
+ * Lollipop on, and from an inexact alarm on older devices, where it waits for a charger unless
+ * it has been skipped for too long.
+ *
+ * The rows deleted and bytes freed go to the sync metrics table, one row per location, and
+ * their totals are kept for dump().
+ */
+public class HistoryRetention {
+    private static final String LOG_TAG = HistoryRetention.class.getSimpleName();
+
+    public static final int DEFAULT_HISTORY_DAYS = 7;
+    public static final int MAX_HISTORY_DAYS = 366;
+
+    // Small enough that a batch holds the database for a few milliseconds
+    static final int BATCH_ROWS = 200;
+
+    // However long a run takes, it stops after this and leaves the rest to the next one
+    static final long RUN_BUDGET_MILLIS = 60 * 1000;
+
+    // On devices without an idle signal, run without a charger once it's been this long
+    static final long MAX_SKIPPED_MILLIS = 3 * AlarmManager.INTERVAL_DAY;
+
+    private static final int JOB_ID = 1;
+
+    private static final String PREFS_NAME = "history_retention";
+    private static final String PREF_DEFAULT_DAYS = "default_days";
+    private static final String PREF_DAYS_PREFIX = "days:";
+    private static final String PREF_LAST_RUN = "last_run";
+    private static final String PREF_LAST_ROWS = "last_rows";
+    private static final String PREF_LAST_BYTES = "last_bytes";
+    private static final String PREF_LAST_MICROS = "last_micros";
+    private static final String PREF_TOTAL_RUNS = "total_runs";
+    private static final String PREF_TOTAL_ROWS = "total_rows";
+    private static final String PREF_TOTAL_BYTES = "total_bytes";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public HistoryRetention(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Sets how many days before today a location keeps, or with a negative days, goes back to
+     * the default.
+     */
+    public void setHistoryDays(String locationSetting, int days) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (days < 0) {
+            editor.remove(PREF_DAYS_PREFIX + locationSetting);
+        } else {
+            editor.putInt(PREF_DAYS_PREFIX + locationSetting, Math.min(days, MAX_HISTORY_DAYS));
+        }
+        editor.commit();
+    }
+
+    /**
+     * Sets how many days before today the locations without a window of their own keep.
+     */
+    public void setDefaultHistoryDays(int days) {
+        mPrefs.edit()
+                .putInt(PREF_DEFAULT_DAYS, Math.max(0, Math.min(days, MAX_HISTORY_DAYS)))
+                .commit();
+    }
+
+    public int getHistoryDays(String locationSetting) {
+        return mPrefs.getInt(PREF_DAYS_PREFIX + locationSetting,
+                mPrefs.getInt(PREF_DEFAULT_DAYS, DEFAULT_HISTORY_DAYS));
+    }
+
+    /**
+     * @return the last date a location keeping historyDays days deletes, as stored in the
+     * weather table.
+     */
+    static long getCutoffDate(int todayJulianDay, int historyDays) {
+        Time dayTime = new Time();
+        return dayTime.setJulianDay(todayJulianDay - historyDays - 1);
+    }
+
+    /**
+     * Deletes every location's expired rows, a batch at a time, until they are all gone or
+     * stop says to give up.
+     *
+     * @return whether every location was done.
+     */
+    public boolean run(SyncDeadline stop) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor = resolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+
+        int today = ForecastDelta.getTodayJulianDay();
+        SyncMetrics metrics = new SyncMetrics();
+        long runStart = System.nanoTime();
+        long rows = 0;
+        long bytes = 0;
+        boolean finished = true;
+        try {
+            while (cursor.moveToNext() && finished) {
+                long locationId = cursor.getLong(0);
+                String locationSetting = cursor.getString(1);
+                long cutoff = getCutoffDate(today, getHistoryDays(locationSetting));
+
+                long start = System.nanoTime();
+                long locationRows = 0;
+                long locationBytes = 0;
+                while (true) {
+                    if (stop.shouldStop()) {
+                        finished = false;
+                        break;
+                    }
+                    long[] deleted = deleteBatch(resolver, locationId, cutoff);
+                    locationRows += deleted[0];
+                    locationBytes += deleted[1];
+                    if (deleted[0] < BATCH_ROWS) {
+                        break;
+                    }
+                }
+                if (locationRows > 0) {
+                    metrics.record(SyncMetricsEntry.PHASE_HISTORY_RETENTION, locationSetting,
+                            (System.nanoTime() - start) / 1000, locationBytes,
+                            SyncMetricsEntry.OUTCOME_OK);
+                }
+                rows += locationRows;
+                bytes += locationBytes;
+            }
+        } finally {
+            cursor.close();
+        }
+        metrics.flush(resolver);
+
+        long micros = (System.nanoTime() - runStart) / 1000;
+        Log.d(LOG_TAG, "Deleted " + rows + " rows, " + bytes + " bytes freed, in " + micros
+                + "us" + (finished ? "" : ", stopped early"));
+        mPrefs.edit()
+                .putLong(PREF_LAST_RUN, System.currentTimeMillis())
+                .putLong(PREF_LAST_ROWS, rows)
+                .putLong(PREF_LAST_BYTES, bytes)
+                .putLong(PREF_LAST_MICROS, micros)
+                .putLong(PREF_TOTAL_RUNS, mPrefs.getLong(PREF_TOTAL_RUNS, 0) + 1)
+                .putLong(PREF_TOTAL_ROWS, mPrefs.getLong(PREF_TOTAL_ROWS, 0) + rows)
+                .putLong(PREF_TOTAL_BYTES, mPrefs.getLong(PREF_TOTAL_BYTES, 0) + bytes)
+                .commit();
+        return finished;
+    }
+
+    /**
+     * @return the rows deleted and the bytes that freed up.
+     */
+    private static long[] deleteBatch(ContentResolver resolver, long locationId, long cutoff) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putLong(WeatherContract.EXTRA_LOCATION_ID, locationId);
+            extras.putLong(WeatherContract.EXTRA_DELETE_ON_OR_BEFORE, cutoff);
+            extras.putInt(WeatherContract.EXTRA_MAX_ROWS, BATCH_ROWS);
+            Bundle deleted = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_DELETE_HISTORY, null, extras);
+            return new long[]{deleted.getInt(WeatherContract.EXTRA_ROWS_DELETED),
+                    deleted.getLong(WeatherContract.EXTRA_BYTES_FREED)};
+        }
+        // delete() can't say what it freed
+        int rows = resolver.delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.buildHistorySelection(BATCH_ROWS),
+                new String[]{Long.toString(locationId), Long.toString(cutoff)});
+        return new long[]{rows, 0};
+    }
+
+    /**
+     * @return whether a run without the device charging is due, on devices that can't wait
+     * for it to be idle.
+     */
+    boolean isOverdue() {
+        return System.currentTimeMillis() - mPrefs.getLong(PREF_LAST_RUN, 0) > MAX_SKIPPED_MILLIS;
+    }
+
+    /**
+     * Schedules the daily run if it isn't already.  Called every time the app starts, as
+     * alarms don't survive a reboot.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context);
+            return;
+        }
+        Intent intent = new Intent(context, HistoryRetentionService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Not a wakeup alarm: the run waits for the device to be in use anyway
+        alarmManager.setInexactRepeating(AlarmManager.RTC,
+                System.currentTimeMillis() + AlarmManager.INTERVAL_HALF_DAY,
+                AlarmManager.INTERVAL_DAY,
+                PendingIntent.getService(context, 0, intent, 0));
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, HistoryRetentionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(AlarmManager.INTERVAL_DAY)
+                .setPersisted(true)
+                .build());
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("History retention:");
+        writer.println("  default window: "
+                + mPrefs.getInt(PREF_DEFAULT_DAYS, DEFAULT_HISTORY_DAYS) + " days");
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PREF_DAYS_PREFIX)) {
+                writer.println("  " + entry.getKey().substring(PREF_DAYS_PREFIX.length())
+                        + ": " + entry.getValue() + " days");
+            }
+        }
+        long lastRun = mPrefs.getLong(PREF_LAST_RUN, 0);
+        if (lastRun == 0) {
+            writer.println("  never run");
+            return;
+        }
+        writer.println(String.format(Locale.US,
+                "  last run %s: %d rows, %d bytes freed, %.1fms",
+                DateFormat.format("yyyy-MM-dd kk:mm:ss", lastRun),
+                mPrefs.getLong(PREF_LAST_ROWS, 0), mPrefs.getLong(PREF_LAST_BYTES, 0),
+                mPrefs.getLong(PREF_LAST_MICROS, 0) / 1000f));
+        writer.println(String.format(Locale.US, "  %d runs: %d rows, %d bytes freed",
+                mPrefs.getLong(PREF_TOTAL_RUNS, 0), mPrefs.getLong(PREF_TOTAL_ROWS, 0),
+                mPrefs.getLong(PREF_TOTAL_BYTES, 0)));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Runs HistoryRetention while the device is idle, from Lollipop on.  If the device stops
+ * being idle, the run is cut short after the batch in progress.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class HistoryRetentionJobService extends JobService {
+
+    private SyncDeadline mDeadline;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mDeadline = new SyncDeadline(HistoryRetention.RUN_BUDGET_MILLIS);
+        final SyncDeadline deadline = mDeadline;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new HistoryRetention(HistoryRetentionJobService.this).run(deadline);
+                // A run cut short is finished by the next day's
+                jobFinished(params, false);
+            }
+        }, "HistoryRetention").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mDeadline != null) {
+            mDeadline.cancel();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Runs HistoryRetention from its daily alarm, before Lollipop.  There is no idle signal to
+ * wait for, so the run waits for a charger instead, unless it has waited too long already.
+ */
+public class HistoryRetentionService extends IntentService {
+    private static final String LOG_TAG = HistoryRetentionService.class.getSimpleName();
+
+    public HistoryRetentionService() {
+        super("HistoryRetentionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        HistoryRetention retention = new HistoryRetention(this);
+        if (!isCharging() && !retention.isOverdue()) {
+            Log.d(LOG_TAG, "Not charging, leaving history for the next alarm");
+            return;
+        }
+        retention.run(new SyncDeadline(HistoryRetention.RUN_BUDGET_MILLIS));
+    }
+
+    private boolean isCharging() {
+        // A null receiver just reads the sticky broadcast
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter.FetchResult;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Fetches the daily and 3-hour forecasts from OpenWeatherMap over ForecastHttpClient.
+ */
+public class OwmForecastSource implements ForecastSource {
+    private static final String LOG_TAG = OwmForecastSource.class.getSimpleName();
+
+    private static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    private static final String HOURLY_FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+    private static final String FORECAST_HOST = Uri.parse(FORECAST_BASE_URL).getHost();
+
+    private final ForecastHttpClient mHttpClient;
+
+    public OwmForecastSource(ForecastHttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    static URL buildHourlyForecastUrl(String locationQuery) throws MalformedURLException {
+        // The 3-hour forecast covers five days, which is all it has, so there's no count
+        Uri builtUri = Uri.parse(HOURLY_FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter("q", locationQuery)
+                .appendQueryParameter("mode", "json")
+                .appendQueryParameter("units", "metric")
+                .appendQueryParameter("APPID", BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+
+    static URL buildForecastUrl(String locationQuery) throws MalformedURLException {
+        String format = "json";
+        String units = "metric";
+        int numDays = 14;
+
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+
+    @Override
+    public String getEndpoint(String locationSetting) {
+        return FORECAST_HOST;
+    }
+
+    @Override
+    public FetchResult fetch(String locationQuery, String etag, String lastModified,
+                             SyncDeadline deadline) {
+        FetchResult result = fetchDaily(locationQuery, etag, lastModified, deadline);
+        if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK && !deadline.shouldStop()) {
+            // Only for a location the daily forecast says exists.  It moves every few hours, so
+            // it's fetched every time rather than with validators.
+            result.hourly = fetchHourly(locationQuery, result, deadline);
+        }
+        return result;
+    }
+
+    /**
+     * @return the 3-hour forecast, or null if it couldn't be had.  That doesn't fail the
+     * location, as its daily forecast is just as good without it.
+     */
+    private ForecastJsonParser.HourlyForecast fetchHourly(String locationQuery,
+                                                          FetchResult result,
+                                                          SyncDeadline deadline) {
+        ForecastHttpClient.Response response = null;
+        try {
+            response = mHttpClient.get(buildHourlyForecastUrl(locationQuery), null, null, deadline);
+            InputStream inputStream = response.getBody();
+            if (response.getCode() != HttpURLConnection.HTTP_OK || inputStream == null) {
+                Log.d(LOG_TAG, "No hourly forecast for " + locationQuery + ": " + response.getCode());
+                return null;
+            }
+            ForecastJsonParser.HourlyForecast hourly;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                hourly = ForecastJsonParser.parseHourly(inputStream);
+            } else {
+                hourly = ForecastJsonParser.parseHourly(readString(inputStream));
+            }
+            result.bytes += response.getBytesOnWire();
+            return hourly.code == HttpURLConnection.HTTP_OK ? hourly : null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return null;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing response", e);
+                }
+            }
+        }
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        return buffer.toString();
+    }
+
+    private FetchResult fetchDaily(String locationQuery, String etag, String lastModified,
+                                   SyncDeadline deadline) {
+        FetchResult result = new FetchResult(locationQuery);
+        result.httpCode = -1;
+
+        // These two need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        ForecastHttpClient.Response response = null;
+        BufferedReader reader = null;
+
+        try {
+            // Send back the validators from the forecast we already have, so the server can
+            // tell us it hasn't changed instead of sending it all again
+            response = mHttpClient.get(buildForecastUrl(locationQuery), etag, lastModified, deadline);
+            result.httpCode = response.getCode();
+            result.connectMicros = response.getConnectMicros();
+            result.timeToFirstByteMicros = response.getTimeToFirstByteMicros() - response.getConnectMicros();
+
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Nothing has changed, so there's nothing to parse, store or tell anyone about
+                Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                return result;
+            }
+            if (response.getCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                // Whatever came back with this isn't going to be a forecast
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                return result;
+            }
+            result.etag = response.getHeader("ETag");
+            result.lastModified = response.getHeader("Last-Modified");
+
+            InputStream inputStream = response.getBody();
+            if (inputStream == null) {
+                // Nothing to do.
+                return result;
+            }
+
+            // Parsing pulls the body off the socket as it goes, so the time spent waiting on
+            // reads is taken out to leave the parse on its own
+            long bodyStart = System.nanoTime();
+            ForecastJsonParser.Forecast forecast;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // Stream straight off the connection, so the response never sits in memory twice
+                forecast = ForecastJsonParser.parse(inputStream);
+            } else {
+                // Read the input stream into a String
+                StringBuilder buffer = new StringBuilder();
+                reader = new BufferedReader(new InputStreamReader(inputStream));
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    buffer.append(line).append('\n');
+                }
+
+                if (buffer.length() == 0) {
+                    // Stream was empty.  No point in parsing.
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                    return result;
+                }
+                forecast = ForecastJsonParser.parse(buffer.toString());
+            }
+            result.downloadMicros = response.getReadMicros();
+            result.parseMicros = (System.nanoTime() - bodyStart) / 1000 - result.downloadMicros;
+            result.bytes = response.getBytesOnWire();
+            Log.d(LOG_TAG, "Downloaded " + response.getBytesOnWire() + " bytes for "
+                    + locationQuery + ", first byte after "
+                    + response.getTimeToFirstByteMillis() + "ms");
+
+            result.setForecast(forecast);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            // Closing rather than disconnecting keeps the socket around for the next request
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing response", e);
+                }
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the downloads of a sync on a small, bounded pool of workers, with a separate cap on how
+ * many may talk to the same host at once.  Network waits overlap, so syncing twenty locations
+ * takes a few round trips rather than twenty.
+ */
+public class ParallelForecastFetcher {
+
+    public static final int DEFAULT_MAX_THREADS = 4;
+    public static final int DEFAULT_MAX_PER_HOST = 3;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * One download.  It reports its host so the per-host cap can be applied.
+     */
+    public interface Job<T> {
+        String getHost();
+
+        T fetch() throws Exception;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxPerHost;
+    private final HashMap<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+
+    public ParallelForecastFetcher() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_PER_HOST);
+    }
+
+    public ParallelForecastFetcher(int maxThreads, int maxPerHost) {
+        mMaxPerHost = maxPerHost;
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "ForecastFetcher #" + mCount.incrementAndGet());
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        // Syncs are hours apart, so don't keep idle workers around between them
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs every job and waits for all of them.  A single job runs on the calling thread.
+     *
+     * @return the results in the same order as the jobs.
+     * @throws ExecutionException if a job threw; the remaining jobs are cancelled.
+     */
+    public <T> List<T> fetchAll(List<? extends Job<T>> jobs)
+            throws InterruptedException, ExecutionException {
+        try {
+            return fetchAll(jobs, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Not with that timeout
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * Runs every job and waits for all of them, for up to the timeout.  A single job runs on
+     * the calling thread, so it has to keep to the timeout by itself.
+     *
+     * @return the results in the same order as the jobs.
+     * @throws ExecutionException if a job threw; the remaining jobs are cancelled.
+     * @throws TimeoutException if the jobs didn't all finish in time; the remaining jobs are
+     * cancelled.
+     */
+    public <T> List<T> fetchAll(List<? extends Job<T>> jobs, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        ArrayList<T> results = new ArrayList<T>(jobs.size());
+        if (jobs.size() == 1) {
+            try {
+                results.add(runLimited(jobs.get(0)));
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+            return results;
+        }
+
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+        try {
+            for (final Job<T> job : jobs) {
+                futures.add(mExecutor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return runLimited(job);
+                    }
+                }));
+            }
+            long timeoutNanos = unit.toNanos(timeout);
+            long start = System.nanoTime();
+            for (Future<T> future : futures) {
+                results.add(future.get(timeoutNanos - (System.nanoTime() - start),
+                        TimeUnit.NANOSECONDS));
+            }
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private <T> T runLimited(Job<T> job) throws Exception {
+        Semaphore permits = getHostPermits(job.getHost());
+        permits.acquire();
+        try {
+            return job.fetch();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private synchronized Semaphore getHostPermits(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mMaxPerHost);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+}
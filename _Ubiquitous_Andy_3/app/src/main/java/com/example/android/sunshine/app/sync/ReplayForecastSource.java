@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter.FetchResult;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Plays back recorded OpenWeatherMap responses instead of going to the network, so the sync,
+ * the provider and the fan-out can be exercised and timed on a device without a connection.
+ *
+ * Recordings are read from a directory or from the app's assets.  The one for a location is
+ * named after its location setting, with anything other than letters, digits, '.', '-' and
+ * '_' turned into '_', plus ".json"; locations without one get DEFAULT_RECORDING.  A recording
+ * can hold an error body such as {"cod":"404"} to play back a failure.  Validators are ignored,
+ * so every fetch returns the full forecast.  The 3-hour forecast is played back the same way
+ * from recordings ending in ".hourly.json" instead, and is left out if there are none.
+ */
+public class ReplayForecastSource implements ForecastSource {
+    private static final String LOG_TAG = ReplayForecastSource.class.getSimpleName();
+
+    public static final String ENDPOINT = "replay";
+    public static final String DEFAULT_RECORDING = "default.json";
+    public static final String DEFAULT_HOURLY_RECORDING = "default.hourly.json";
+
+    private final File mDirectory;
+    private final AssetManager mAssets;
+    private final String mAssetPath;
+    private final long mLatencyMillis;
+
+    /**
+     * @param latencyMillis How long each fetch waits before answering, to stand in for a
+     * round trip.
+     */
+    public ReplayForecastSource(File directory, long latencyMillis) {
+        mDirectory = directory;
+        mAssets = null;
+        mAssetPath = null;
+        mLatencyMillis = latencyMillis;
+    }
+
+    public ReplayForecastSource(AssetManager assets, String assetPath, long latencyMillis) {
+        mDirectory = null;
+        mAssets = assets;
+        mAssetPath = assetPath;
+        mLatencyMillis = latencyMillis;
+    }
+
+    public static String getRecordingName(String locationSetting) {
+        return locationSetting.replaceAll("[^A-Za-z0-9._-]", "_") + ".json";
+    }
+
+    public static String getHourlyRecordingName(String locationSetting) {
+        return locationSetting.replaceAll("[^A-Za-z0-9._-]", "_") + ".hourly.json";
+    }
+
+    @Override
+    public String getEndpoint(String locationSetting) {
+        return ENDPOINT;
+    }
+
+    @Override
+    public FetchResult fetch(String locationSetting, String etag, String lastModified,
+                             SyncDeadline deadline) {
+        FetchResult result = new FetchResult(locationSetting);
+        InputStream in = null;
+        try {
+            if (mLatencyMillis > 0) {
+                // A round trip that would outlast the sync is cut short, as a socket's would be
+                Thread.sleep(Math.min(mLatencyMillis, deadline.getRemainingMillis()));
+            }
+            deadline.check();
+            in = open(getRecordingName(locationSetting));
+            if (in == null) {
+                in = open(DEFAULT_RECORDING);
+            }
+            if (in == null) {
+                Log.e(LOG_TAG, "No recording for " + locationSetting);
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                return result;
+            }
+            in = deadline.wrap(in);
+
+            long parseStart = System.nanoTime();
+            ForecastJsonParser.Forecast forecast;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                forecast = ForecastJsonParser.parse(in);
+            } else {
+                forecast = ForecastJsonParser.parse(readString(in));
+            }
+            result.parseMicros = (System.nanoTime() - parseStart) / 1000;
+            result.setForecast(forecast);
+
+            if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                result.hourly = readHourly(locationSetting, deadline);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the location's 3-hour forecast, or null if there's no recording for it or it
+     * doesn't hold one.  Like a failed download, that doesn't fail the location.
+     */
+    private ForecastJsonParser.HourlyForecast readHourly(String locationSetting,
+                                                         SyncDeadline deadline)
+            throws IOException {
+        InputStream in = open(getHourlyRecordingName(locationSetting));
+        if (in == null) {
+            in = open(DEFAULT_HOURLY_RECORDING);
+        }
+        if (in == null) {
+            return null;
+        }
+        in = deadline.wrap(in);
+        try {
+            ForecastJsonParser.HourlyForecast hourly;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                hourly = ForecastJsonParser.parseHourly(in);
+            } else {
+                hourly = ForecastJsonParser.parseHourly(readString(in));
+            }
+            return hourly.code == HttpURLConnection.HTTP_OK ? hourly : null;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the recording, or null if there isn't one by that name.
+     */
+    private InputStream open(String name) throws IOException {
+        try {
+            if (mDirectory != null) {
+                return new BufferedInputStream(new FileInputStream(new File(mDirectory, name)));
+            }
+            return mAssets.open(mAssetPath + "/" + name);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
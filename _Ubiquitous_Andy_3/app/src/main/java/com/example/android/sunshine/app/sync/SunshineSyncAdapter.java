@@ -2,60 +2,39 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -66,27 +45,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
-    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-    private static final String WEATHER_DATA_PATH = "/WEATHER_DATA_PATH";
-    private static final String WEATHER_ID = "WEATHER_ID";
-    private static final String WEATHER_HIGH = "WEATHER_HIGH";
-    private static final String WEATHER_LOW = "WEATHER_LOW";
-    private static final String WEATHER_IS_METRIC = "WEATHER_IS_METRIC";
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -98,451 +56,581 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Set to true to sync every saved location, or false for just the preferred one.  When it
+    // isn't set, periodic syncs do every location and manual ones only the preferred one.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
+
+    private final ForecastSource mSource;
+    private final ParallelForecastFetcher mFetcher = new ParallelForecastFetcher();
+    private final SyncScheduler mScheduler;
+    private final SyncBackoff mBackoff;
+    private final SyncCoalescer mCoalescer;
+    private final WearPublisher mWear;
+    private final ForecastFanOut mFanOut;
+    private final SyncTelemetry mTelemetry;
+    // The deadline of the sync in progress, for onSyncCanceled()
+    private volatile SyncDeadline mDeadline;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, new OwmForecastSource(new ForecastHttpClient()));
+    }
+
+    /**
+     * @param source Where forecasts come from.  Tests and benchmarks pass a
+     * ReplayForecastSource to run the whole sync without a network.
+     */
+    public SunshineSyncAdapter(Context context, boolean autoInitialize, ForecastSource source) {
         super(context, autoInitialize);
+        mSource = source;
+        mScheduler = new SyncScheduler(context);
+        mBackoff = new SyncBackoff(context);
+        mCoalescer = new SyncCoalescer(context);
+        mWear = new WearPublisher(context);
+        mFanOut = new ForecastFanOut(context, mWear);
+        mTelemetry = new SyncTelemetry(context, new ForecastHttpClient());
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        // Set by the framework on syncs the user forced, which should get through regardless
+        boolean ignoreBackoff = extras.getBoolean(ContentResolver.SYNC_EXTRAS_IGNORE_BACKOFF, false);
+        List<String> locations = mCoalescer.plan(getRequestedLocations(extras), ignoreBackoff);
+        if (locations.isEmpty()) {
+            Log.d(LOG_TAG, "Skipping sync, its locations are all fresh");
+            // The location may have been switched back to one that just synced, which is then
+            // stored but not what the widgets, Muzei and the watch show
+            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            SyncMetrics metrics = new SyncMetrics();
+            try {
+                publishIfStale(metrics, true);
+            } finally {
+                metrics.flush(getContext().getContentResolver());
+                mWear.disconnect();
             }
+            return;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        Log.d(LOG_TAG, "Starting sync");
+        long start = System.nanoTime();
+        SyncMetrics metrics = new SyncMetrics();
+        SyncDeadline deadline = new SyncDeadline(SyncDeadline.DEFAULT_BUDGET_MILLIS);
+        mDeadline = deadline;
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        try {
+            status = syncLocations(locations, ignoreBackoff, metrics, deadline);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            mDeadline = null;
+            if (deadline.shouldStop()) {
+                Log.d(LOG_TAG, deadline.isCancelled() ? "Sync cancelled" : "Sync ran out of time");
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+            metrics.record(WeatherContract.SyncMetricsEntry.PHASE_TOTAL, null,
+                    (System.nanoTime() - start) / 1000, 0, status);
+            mTelemetry.onSyncFinished(metrics, status);
+            metrics.flush(getContext().getContentResolver());
+            mWear.disconnect();
+        }
+    }
+
+    /**
+     * The framework interrupts the sync thread, which doesn't unblock a socket read, so the
+     * requests in flight are aborted as well.
+     */
+    @Override
+    public void onSyncCanceled() {
+        SyncDeadline deadline = mDeadline;
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        super.onSyncCanceled();
+    }
+
+    /**
+     * @return the locations the sync extras ask for, the preferred one first.
+     */
+    private List<String> getRequestedLocations(Bundle extras) {
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+
+        // A sync the user asked for only needs the location they're looking at.  Anything else
+        // refreshes every location we've saved, so switching between them is instant.
+        boolean allLocations = extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS,
+                !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+        ArrayList<String> locations = new ArrayList<String>();
+        locations.add(preferredLocation);
+        if (allLocations) {
+            for (String location : getSavedLocations()) {
+                if (!location.equals(preferredLocation)) {
+                    locations.add(location);
                 }
             }
         }
-        return;
+        return locations;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches, stores and fans out the forecasts of locations, the preferred one first.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the status of the preferred location.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
+    @LocationStatus
+    private int syncLocations(List<String> locations, boolean ignoreBackoff, SyncMetrics metrics,
+                              SyncDeadline deadline) {
+        ArrayList<ForecastJob> jobs = new ArrayList<ForecastJob>(locations.size());
+        for (String location : locations) {
+            jobs.add(new ForecastJob(location, ignoreBackoff, metrics, deadline));
+        }
 
+        // Nothing fetched so far is stored if the sync is cancelled or out of time, so it is
+        // left as if it never ran, and the next one starts from the same place
+        List<FetchResult> results;
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
+            results = mFetcher.fetchAll(jobs, deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.d(LOG_TAG, "Sync interrupted");
+            deadline.abort();
+            return LOCATION_STATUS_UNKNOWN;
+        } catch (TimeoutException e) {
+            deadline.abort();
+            return LOCATION_STATUS_UNKNOWN;
+        } catch (ExecutionException e) {
+            // Sources handle their own errors, so this is a bug rather than bad data
+            Log.e(LOG_TAG, "Error ", e);
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            mScheduler.onSyncFinished(0, true, mWear.isWatchConnected());
+            return LOCATION_STATUS_SERVER_DOWN;
+        }
+        if (deadline.shouldStop()) {
+            return LOCATION_STATUS_UNKNOWN;
+        }
+        float changedFraction = storeForecasts(results, metrics, deadline);
+        if (changedFraction < 0) {
+            // Rolled back
+            return LOCATION_STATUS_UNKNOWN;
+        }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+        long now = System.currentTimeMillis();
+        for (FetchResult result : results) {
+            if (result.status == LOCATION_STATUS_OK) {
+                mCoalescer.onSynced(result.locationSetting, now);
             }
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+        // The status we show is for the location on screen, which is always the first one
+        @LocationStatus int status = results.get(0).status;
+        setLocationStatus(getContext(), status);
+        publishIfStale(metrics, !deadline.shouldStop());
+        mScheduler.onSyncFinished(changedFraction, status != LOCATION_STATUS_OK,
+                !deadline.shouldStop() && mWear.isWatchConnected());
+        if (status == LOCATION_STATUS_OK && !deadline.shouldStop()) {
+            mTelemetry.uploadIfQueued(deadline);
+        }
+        return status;
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * Fans out the preferred location's stored forecast if what was last published is about
+     * another location.  A location the user switches to is often stored already, and comes
+     * back unchanged, which storeForecasts() doesn't publish.  Otherwise, if an earlier publish
+     * left the watch out, sends the watch alone what it missed.
+     */
+    private void publishIfStale(SyncMetrics metrics, boolean includeWear) {
+        boolean stale = mFanOut.isStale();
+        if (!stale && !(includeWear && mWear.hasUnsent())) {
+            return;
+        }
+        ForecastSnapshot snapshot = ForecastSnapshot.load(getContext());
+        if (snapshot.days.isEmpty()) {
+            // Nothing stored for it yet, which a sync that stores it publishes
+            return;
+        }
+        if (stale) {
+            ForecastSnapshot.setLatest(snapshot);
+            mFanOut.publish(snapshot, metrics, includeWear);
+        } else {
+            long start = System.nanoTime();
+            mWear.publish(snapshot);
+            metrics.recordSince(WeatherContract.SyncMetricsEntry.PHASE_FAN_OUT_WEAR, start);
+        }
+    }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+    /**
+     * The download and parse of one location's forecast, as run by the fetcher.  It checks the
+     * circuit breakers of its location and endpoint first, and reports back to them after.
+     */
+    private class ForecastJob implements ParallelForecastFetcher.Job<FetchResult> {
+        private final String mLocationSetting;
+        private final boolean mIgnoreBackoff;
+        private final SyncMetrics mMetrics;
+        private final SyncDeadline mDeadline;
+
+        ForecastJob(String locationSetting, boolean ignoreBackoff, SyncMetrics metrics,
+                    SyncDeadline deadline) {
+            mLocationSetting = locationSetting;
+            mIgnoreBackoff = ignoreBackoff;
+            mMetrics = metrics;
+            mDeadline = deadline;
+        }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        @Override
+        public String getHost() {
+            return mSource.getEndpoint(mLocationSetting);
+        }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        @Override
+        public FetchResult fetch() {
+            if (mDeadline.shouldStop()) {
+                // Queued behind other locations for too long
+                return new FetchResult(mLocationSetting);
+            }
+            String locationKey = SyncBackoff.locationKey(mLocationSetting);
+            String endpointKey = SyncBackoff.endpointKey(getHost());
+            long now = System.currentTimeMillis();
+            if (!mIgnoreBackoff) {
+                String blockedBy = null;
+                if (!mBackoff.allowRequest(locationKey, now)) {
+                    blockedBy = locationKey;
+                } else if (!mBackoff.allowRequest(endpointKey, now)) {
+                    mBackoff.cancelProbe(locationKey);
+                    blockedBy = endpointKey;
+                }
+                if (blockedBy != null) {
+                    // Leave the server alone and keep reporting what went wrong last time
+                    Log.d(LOG_TAG, "Skipping " + mLocationSetting + ", " + blockedBy + " is backing off");
+                    FetchResult result = new FetchResult(mLocationSetting);
+                    result.status = mBackoff.getLastStatus(blockedBy);
+                    return result;
+                }
+            }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+            // Send back the validators from the forecast we already have, so the source can
+            // tell us it hasn't changed instead of sending it all again
+            String[] validators = getLocationValidators(mLocationSetting);
+            long fetchStart = System.nanoTime();
+            FetchResult result = mSource.fetch(mLocationSetting,
+                    validators != null ? validators[0] : null,
+                    validators != null ? validators[1] : null,
+                    mDeadline);
+            result.fetchMicros = (System.nanoTime() - fetchStart) / 1000;
+            mMetrics.recordFetch(result);
+            if (mDeadline.isCancelled()) {
+                // The request was cut off by us, which says nothing about the server.  Running
+                // out of time does count, as that's what a stalled server looks like.
+                mBackoff.cancelProbe(locationKey);
+                mBackoff.cancelProbe(endpointKey);
+                return result;
+            }
+            now = System.currentTimeMillis();
+            switch (result.status) {
+                case LOCATION_STATUS_OK:
+                    mBackoff.onSuccess(locationKey);
+                    mBackoff.onSuccess(endpointKey);
+                    break;
+                case LOCATION_STATUS_INVALID:
+                    // The server answered fine, it just doesn't know this place
+                    mBackoff.onFailure(locationKey, result.status, now);
+                    mBackoff.onSuccess(endpointKey);
+                    break;
+                default:
+                    mBackoff.onFailure(locationKey, result.status, now);
+                    mBackoff.onFailure(endpointKey, result.status, now);
+                    break;
+            }
+            return result;
+        }
+    }
 
-                double high;
-                double low;
+    /**
+     * What fetching one location came back with.  forecast is only set when there is new data
+     * to store.
+     */
+    public static class FetchResult {
+        final String locationSetting;
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        ForecastJsonParser.Forecast forecast;
+        String etag;
+        String lastModified;
+        // The 3-hour forecast, or null if the source has none or it couldn't be fetched
+        ForecastJsonParser.HourlyForecast hourly;
+
+        // Where the time went, for SyncMetrics.  httpCode stays 0 for sources that don't use
+        // the network, and is -1 when a request got no response.
+        int httpCode;
+        long connectMicros;
+        long timeToFirstByteMicros;
+        long downloadMicros;
+        long parseMicros;
+        long bytes;
+        long fetchMicros;
+
+        FetchResult(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
 
-                String description;
-                int weatherId;
+        /**
+         * Takes a parsed response, keeping the forecast only if the code inside it says it is
+         * one.
+         */
+        void setForecast(ForecastJsonParser.Forecast forecast) {
+            // do we have an error?
+            switch (forecast.code) {
+                case HttpURLConnection.HTTP_OK:
+                    status = LOCATION_STATUS_OK;
+                    this.forecast = forecast;
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    status = LOCATION_STATUS_INVALID;
+                    break;
+                default:
+                    status = LOCATION_STATUS_SERVER_DOWN;
+                    break;
+            }
+        }
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * Take the parsed forecasts, stamp each day row with its location and date, and apply them
+     * to the database as one batch: the locations with their response validators, the weather
+     * rows and the removal of days that have passed all commit in one transaction.
+     *
+     * @return the share of the rows that held new values, which is how the scheduler measures
+     * how much the forecast is moving, or -1 if the deadline passed and nothing was stored.
+     */
+    private float storeForecasts(List<FetchResult> results, SyncMetrics metrics,
+                                 SyncDeadline deadline) {
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        dayTime = new Time();
+
+        ArrayList<ContentValues> locations = new ArrayList<ContentValues>();
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        ArrayList<ContentValues> hourlyRows = new ArrayList<ContentValues>();
+        ForecastSnapshot preferredSnapshot = null;
+        for (FetchResult result : results) {
+            // The 3-hour forecast comes along even when the daily one was not modified
+            if (result.hourly != null) {
+                for (ContentValues slotValues : result.hourly.slots) {
+                    slotValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, result.locationSetting);
+                    hourlyRows.add(slotValues);
+                }
+            }
 
+            ForecastJsonParser.Forecast forecast = result.forecast;
+            if (forecast == null) {
+                continue;
+            }
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, result.locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.cityName);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, forecast.cityLongitude);
+            // Nulls are written too, so a server that stops sending a validator doesn't leave a
+            // stale one behind
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, result.etag);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, result.lastModified);
+            locations.add(locationValues);
+
+            for (int i = 0; i < forecast.days.size(); i++) {
+                ContentValues weatherValues = forecast.days.get(i);
+                // The provider swaps the location setting for the location's _id
+                weatherValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, result.locationSetting);
                 // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        dayTime.setJulianDay(julianStartDay + i));
+                rows.add(weatherValues);
             }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                notifyWear();
+            if (result == results.get(0)) {
+                // Taken before the provider sees the rows, as the fallback path rewrites them
+                preferredSnapshot = ForecastSnapshot.fromValues(result.locationSetting,
+                        rows.subList(rows.size() - forecast.days.size(), rows.size()));
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
         }
-    }
 
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
-    }
+        if (locations.isEmpty() && hourlyRows.isEmpty()) {
+            Log.d(LOG_TAG, "Sync Complete. Nothing new for " + results.size() + " locations");
+            return 0;
+        }
 
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_LOCATIONS,
+                locations.toArray(new ContentValues[locations.size()]));
+        extras.putParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES,
+                rows.toArray(new ContentValues[rows.size()]));
+        extras.putParcelableArray(WeatherContract.EXTRA_HOURLY_VALUES,
+                hourlyRows.toArray(new ContentValues[hourlyRows.size()]));
+        // Keep the slot we're in, which started up to three hours ago
+        extras.putLong(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE,
+                WeatherContract.HourlyEntry.getEpochHour(System.currentTimeMillis()) - 3);
+        extras.putLong(WeatherContract.EXTRA_DEADLINE, deadline.getElapsedRealtime());
+
+        Bundle applied;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            applied = getContext().getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_APPLY_SYNC, null, extras);
+        } else {
+            // Without a transaction to roll back, the deadline was checked before we got here
+            applied = applySyncWithoutCall(extras);
+        }
+        if (applied.getBoolean(WeatherContract.EXTRA_DEADLINE_EXCEEDED, false)) {
+            Log.d(LOG_TAG, "Sync ran out of time while storing, rolled back");
+            return -1;
+        }
+        long[] changedLocationIds = applied.getLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS);
+        metrics.recordProviderPhases(applied.getBundle(WeatherContract.EXTRA_PHASE_MICROS));
+
+        // Everything we fan out to shows the preferred location, so if its forecast is the same
+        // as before there is nothing new to show, unless what was last shown is about another
+        // location, which publishIfStale() sees to.  The preferred location is always fetched
+        // first, so if it brought a forecast it is the first location of the batch.
+        boolean preferredChanged = false;
+        if (results.get(0).forecast != null) {
+            long preferredLocationId = applied.getLongArray(WeatherContract.EXTRA_LOCATION_IDS)[0];
+            for (long changedLocationId : changedLocationIds) {
+                if (changedLocationId == preferredLocationId) {
+                    preferredChanged = true;
+                    break;
+                }
+            }
+        }
+        if (preferredChanged) {
+            ForecastSnapshot.setLatest(preferredSnapshot);
+            // The data is committed, so the quick part of the fan-out still goes out past the
+            // deadline.  The watch can take seconds to answer, so it is marked unsent instead,
+            // and the next sync's publishIfStale() sends it.
+            mFanOut.publish(preferredSnapshot.from(System.currentTimeMillis()), metrics,
+                    !deadline.shouldStop());
         }
+        int changedRows = applied.getLongArray(WeatherContract.EXTRA_CHANGED_DATES).length;
+        metrics.setRowsChanged(changedRows);
+        Log.d(LOG_TAG, "Sync Complete. " + changedRows + " of " + rows.size()
+                + " rows changed and " + hourlyRows.size() + " hourly rows stored for "
+                + results.size() + " locations");
+        return rows.isEmpty() ? 0 : (float) changedRows / rows.size();
     }
 
+    /**
+     * Does what WeatherContract.METHOD_APPLY_SYNC does, through the ordinary provider methods,
+     * for devices that don't have ContentResolver.call().  It isn't atomic, and as bulkInsert
+     * only reports a count, any change is reported against every row.
+     */
+    private Bundle applySyncWithoutCall(Bundle extras) {
+        ContentResolver resolver = getContext().getContentResolver();
+        Parcelable[] locations = extras.getParcelableArray(WeatherContract.EXTRA_LOCATIONS);
+        Parcelable[] rows = extras.getParcelableArray(WeatherContract.EXTRA_WEATHER_VALUES);
+
+        long[] locationIds = new long[locations.length];
+        HashMap<String, Long> idsBySetting = new HashMap<String, Long>();
+        for (int i = 0; i < locations.length; i++) {
+            ContentValues locationValues = (ContentValues) locations[i];
+            String locationSetting = locationValues.getAsString(
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            locationIds[i] = addLocation(locationSetting,
+                    locationValues.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                    locationValues.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                    locationValues.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+            resolver.update(WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues,
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationIds[i])});
+            idsBySetting.put(locationSetting, locationIds[i]);
+        }
 
-    private void notifyWear() {
-        String locationQuery = Utility.getPreferredLocation(getContext());
-        boolean isMetric = Utility.isMetric(getContext());
-        Uri weatherUri = WeatherContract.WeatherEntry
-                .buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-        Cursor cursor = getContext().getContentResolver()
-                .query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-            Log.d(LOG_TAG, "Sending weather information to android wear");
-
-            PutDataMapRequest dataMap = PutDataMapRequest.create(WEATHER_DATA_PATH);
-            if(isMetric){
-                dataMap.getDataMap().putDouble(WEATHER_HIGH, high);
-                dataMap.getDataMap().putDouble(WEATHER_LOW, low);
-            }
-            else{
-                high = (high * 1.8) + 32;
-                low = (low * 1.8) + 32;
-                dataMap.getDataMap().putDouble(WEATHER_HIGH, high);
-                dataMap.getDataMap().putDouble(WEATHER_LOW, low);
+        ContentValues[] cvArray = new ContentValues[rows.length];
+        long[] rowLocationIds = new long[rows.length];
+        long[] rowDates = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            cvArray[i] = (ContentValues) rows[i];
+            String locationSetting = cvArray[i].getAsString(
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            cvArray[i].remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            rowLocationIds[i] = idsBySetting.get(locationSetting);
+            cvArray[i].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, rowLocationIds[i]);
+            rowDates[i] = cvArray[i].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        }
+        int changed = resolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+
+        Parcelable[] hourlyRows = extras.getParcelableArray(WeatherContract.EXTRA_HOURLY_VALUES);
+        ContentValues[] hourlyArray = new ContentValues[hourlyRows.length];
+        for (int i = 0; i < hourlyRows.length; i++) {
+            hourlyArray[i] = (ContentValues) hourlyRows[i];
+            String locationSetting = hourlyArray[i].getAsString(
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            hourlyArray[i].remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            Long locationId = idsBySetting.get(locationSetting);
+            if (locationId == null) {
+                // Its daily forecast wasn't modified, so it is already stored
+                locationId = getLocationId(locationSetting);
+                idsBySetting.put(locationSetting, locationId);
             }
-
-            dataMap.getDataMap().putLong(WEATHER_ID, weatherId);
-            dataMap.getDataMap().putBoolean(WEATHER_IS_METRIC,isMetric);
-            PutDataRequest request = dataMap.asPutDataRequest();
-
-            Log.d(LOG_TAG, "GoogleApiClient " + MainActivity.mGoogleApiClient.isConnected());
-
-            Wearable.DataApi.putDataItem(MainActivity.mGoogleApiClient, request)
-                    .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                        @Override
-                        public void onResult(DataApi.DataItemResult result) {
-                            if (!result.getStatus().isSuccess()) {
-                                Log.d(LOG_TAG, "Cannot send weather information, status code: "
-                                        + result.getStatus().getStatusCode());
-                            } else {
-                                Log.d(LOG_TAG, "Weather information sent successfully "
-                                        + result.getDataItem().getUri());
-                            }
-                        }
-                    });
+            hourlyArray[i].put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
         }
+        resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI, hourlyArray);
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_EPOCH_HOUR + " < ?",
+                new String[] {Long.toString(extras.getLong(WeatherContract.EXTRA_DELETE_HOURLY_BEFORE))});
+
+        Bundle applied = new Bundle();
+        applied.putLongArray(WeatherContract.EXTRA_LOCATION_IDS, locationIds);
+        applied.putLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS,
+                changed == 0 ? new long[0] : rowLocationIds);
+        applied.putLongArray(WeatherContract.EXTRA_CHANGED_DATES,
+                changed == 0 ? new long[0] : rowDates);
+        return applied;
     }
 
+    /**
+     * @return the _id of a stored location.
+     */
+    private long getLocationId(String locationSetting) {
+        long locationId = LocationCache.getInstance(getContext()).getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new IllegalArgumentException("Hourly forecast for unknown location " + locationSetting);
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if ( displayNotifications ) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+    /**
+     * @return the location setting of every location in the database.
+     */
+    private List<String> getSavedLocations() {
+        ArrayList<String> locations = new ArrayList<String>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locations.add(cursor.getString(0));
             }
+            cursor.close();
         }
+        return locations;
     }
 
     /**
@@ -555,7 +643,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+        long locationId = LocationCache.getInstance(getContext()).getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
 
         // First, check if the location with this city name exists in the db
         Cursor locationCursor = getContext().getContentResolver().query(
@@ -595,6 +686,52 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         return locationId;
     }
 
+    /**
+     * Looks up the validators saved with the last forecast for a location.  We only hand them
+     * out while we still hold forecast data for today, otherwise a 304 would leave us with nothing
+     * to show.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @return the ETag and Last-Modified values, either of which may be null, or null if there
+     * is nothing worth revalidating.
+     */
+    private String[] getLocationValidators(String locationSetting) {
+        ContentResolver resolver = getContext().getContentResolver();
+        Cursor todayCursor = resolver.query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                null,
+                null,
+                null);
+        if (todayCursor == null) {
+            return null;
+        }
+        boolean haveToday = todayCursor.moveToFirst();
+        todayCursor.close();
+        if (!haveToday) {
+            return null;
+        }
+
+        Cursor locationCursor = resolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_ETAG,
+                        WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (locationCursor == null) {
+            return null;
+        }
+        String[] validators = null;
+        if (locationCursor.moveToFirst()
+                && (!locationCursor.isNull(0) || !locationCursor.isNull(1))) {
+            validators = new String[]{locationCursor.getString(0), locationCursor.getString(1)};
+        }
+        locationCursor.close();
+        return validators;
+    }
+
     /**
      * Helper method to schedule the sync adapter periodic execution
      */
@@ -619,6 +756,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        new SyncCoalescer(context).onRequested(Utility.getPreferredLocation(context));
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -684,6 +822,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        HistoryRetention.schedule(context);
     }
 
     /**
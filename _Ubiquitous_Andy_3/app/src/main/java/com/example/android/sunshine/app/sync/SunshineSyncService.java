@@ -5,6 +5,12 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.QueryCache;
+import com.example.android.sunshine.app.gcm.WeatherAlertBatcher;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class SunshineSyncService extends Service {
     private static final Object sSyncAdapterLock = new Object();
     private static SunshineSyncAdapter sSunshineSyncAdapter = null;
@@ -23,4 +29,28 @@ public class SunshineSyncService extends Service {
     public IBinder onBind(Intent intent) {
         return sSunshineSyncAdapter.getSyncAdapterBinder();
     }
-}
\ No newline at end of file
+
+    /**
+     * Prints the state of the sync and what it feeds: the scheduler's recent decisions, the
+     * syncs and locations the coalescer absorbed, per-phase timings, the query cache's hit
+     * rate, history retention and telemetry totals, and the weather alerts that came in
+     * through GCM.  Run
+     * adb shell dumpsys activity service com.example.android.sunshine.app/.sync.SunshineSyncService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        new SyncScheduler(this).dump(writer);
+        writer.println();
+        new SyncCoalescer(this).dump(writer);
+        writer.println();
+        SyncMetrics.dump(getContentResolver(), writer);
+        writer.println();
+        QueryCache.getInstance().dump(writer);
+        writer.println();
+        new HistoryRetention(this).dump(writer);
+        writer.println();
+        new SyncTelemetry(this, null).dump(writer);
+        writer.println();
+        new WeatherAlertBatcher(this).dump(writer);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A circuit breaker with exponential backoff for each endpoint and each location we sync,
+ * kept in SharedPreferences so it survives the process.
+ *
+ * A breaker starts closed.  After FAILURE_THRESHOLD failures in a row it opens, and requests
+ * are skipped until a retry time that doubles with every further failure, up to MAX_DELAY,
+ * with jitter so that devices that failed together don't all come back together.  Once the
+ * retry time passes the breaker is half-open: one request is let through as a probe, and its
+ * result either closes the breaker again or reopens it for longer.
+ */
+public class SyncBackoff {
+    private static final String LOG_TAG = SyncBackoff.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {}
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 2;
+    static final long BASE_DELAY_MILLIS = 5 * 60 * 1000;
+    static final long MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final String PREFS_NAME = "sync_backoff";
+    private static final String ENDPOINT_PREFIX = "endpoint:";
+    private static final String LOCATION_PREFIX = "location:";
+    private static final String SUFFIX_FAILURES = ".failures";
+    private static final String SUFFIX_RETRY_AT = ".retry_at";
+    private static final String SUFFIX_STATUS = ".status";
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom;
+    // Breakers with a probe in flight.  Only this process can have one, so it isn't persisted.
+    private final HashSet<String> mProbing = new HashSet<String>();
+
+    public SyncBackoff(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), new Random());
+    }
+
+    SyncBackoff(SharedPreferences prefs, Random random) {
+        mPrefs = prefs;
+        mRandom = random;
+    }
+
+    public static String endpointKey(String host) {
+        return ENDPOINT_PREFIX + host;
+    }
+
+    public static String locationKey(String locationSetting) {
+        return LOCATION_PREFIX + locationSetting;
+    }
+
+    @State
+    public synchronized int getState(String key, long nowMillis) {
+        if (mPrefs.getInt(key + SUFFIX_FAILURES, 0) < FAILURE_THRESHOLD) {
+            return STATE_CLOSED;
+        }
+        return nowMillis < mPrefs.getLong(key + SUFFIX_RETRY_AT, 0) ? STATE_OPEN : STATE_HALF_OPEN;
+    }
+
+    /**
+     * @return whether a request may go out now.  A half-open breaker says yes once, and then no
+     * until that request has reported back.
+     */
+    public synchronized boolean allowRequest(String key, long nowMillis) {
+        switch (getState(key, nowMillis)) {
+            case STATE_CLOSED:
+                return true;
+            case STATE_HALF_OPEN:
+                return mProbing.add(key);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gives back a probe that allowRequest() handed out but that was never sent.
+     */
+    public synchronized void cancelProbe(String key) {
+        mProbing.remove(key);
+    }
+
+    public synchronized void onSuccess(String key) {
+        mProbing.remove(key);
+        if (mPrefs.contains(key + SUFFIX_FAILURES)) {
+            mPrefs.edit()
+                    .remove(key + SUFFIX_FAILURES)
+                    .remove(key + SUFFIX_RETRY_AT)
+                    .remove(key + SUFFIX_STATUS)
+                    .commit();
+        }
+    }
+
+    /**
+     * @param status The location status the failure left us with, so a skipped sync can report
+     * the same one.
+     */
+    public synchronized void onFailure(String key, @SunshineSyncAdapter.LocationStatus int status,
+                                       long nowMillis) {
+        mProbing.remove(key);
+        int failures = mPrefs.getInt(key + SUFFIX_FAILURES, 0) + 1;
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putInt(key + SUFFIX_FAILURES, failures)
+                .putInt(key + SUFFIX_STATUS, status);
+        if (failures >= FAILURE_THRESHOLD) {
+            long retryAt = nowMillis + getDelayMillis(failures);
+            editor.putLong(key + SUFFIX_RETRY_AT, retryAt);
+            Log.d(LOG_TAG, key + " open after " + failures + " failures, retry in "
+                    + (retryAt - nowMillis) / 1000 + "s");
+        }
+        editor.commit();
+    }
+
+    /**
+     * The delay before the next probe: doubling from BASE_DELAY_MILLIS, capped at
+     * MAX_DELAY_MILLIS, then picked at random from the upper half of that.
+     */
+    long getDelayMillis(int failures) {
+        long delay = BASE_DELAY_MILLIS;
+        for (int i = FAILURE_THRESHOLD; i < failures && delay < MAX_DELAY_MILLIS; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, MAX_DELAY_MILLIS);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * @return the status recorded with the last failure, for reporting a skipped request.
+     */
+    @SunshineSyncAdapter.LocationStatus
+    public synchronized int getLastStatus(String key) {
+        //noinspection ResourceType
+        return mPrefs.getInt(key + SUFFIX_STATUS, SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+    }
+
+    /**
+     * @return when syncing a location will next be tried, taking its own breaker and those of
+     * every endpoint into account, or 0 if nothing is holding it back.
+     */
+    public synchronized long getRetryTime(String locationSetting, long nowMillis) {
+        long retryAt = 0;
+        if (getState(locationKey(locationSetting), nowMillis) == STATE_OPEN) {
+            retryAt = mPrefs.getLong(locationKey(locationSetting) + SUFFIX_RETRY_AT, 0);
+        }
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            String prefKey = entry.getKey();
+            if (prefKey.startsWith(ENDPOINT_PREFIX) && prefKey.endsWith(SUFFIX_FAILURES)) {
+                String key = prefKey.substring(0, prefKey.length() - SUFFIX_FAILURES.length());
+                if (getState(key, nowMillis) == STATE_OPEN) {
+                    retryAt = Math.max(retryAt, mPrefs.getLong(key + SUFFIX_RETRY_AT, 0));
+                }
+            }
+        }
+        return retryAt;
+    }
+}
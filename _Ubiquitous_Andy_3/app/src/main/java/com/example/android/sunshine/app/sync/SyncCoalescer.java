@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in front of the sync so that triggers landing close together cost one sync.
+ *
+ * A trigger (a change of location, the account being created) records its location as pending
+ * before requesting a sync.  Whichever sync runs next takes every pending location along with
+ * the ones its own extras ask for, so the syncs queued behind it find them already done.  A
+ * location that synced successfully in the last FRESHNESS_WINDOW_MILLIS is left out, and a
+ * sync with nothing left to do is absorbed without running.  The location on screen stays in
+ * whenever the sync does run, as the sync reports its status and fans out its forecast, and
+ * a conditional request for a fresh forecast costs next to nothing.  Syncs forced with
+ * SYNC_EXTRAS_IGNORE_BACKOFF skip none of this.
+ */
+public class SyncCoalescer {
+
+    static final long FRESHNESS_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    private static final String PREFS_NAME = "sync_coalescer";
+    private static final String PREF_PENDING = "pending";
+    private static final String PREF_SYNCED_PREFIX = "synced:";
+    private static final String PREF_REQUESTS = "requests";
+    private static final String PREF_SYNCS = "syncs";
+    private static final String PREF_ABSORBED_SYNCS = "absorbed_syncs";
+    private static final String PREF_SKIPPED_LOCATIONS = "skipped_locations";
+    private static final String PREF_MERGED_LOCATIONS = "merged_locations";
+
+    // Triggers run on the main thread and syncs on their own, and both rewrite the pending list
+    private static final Object sLock = new Object();
+
+    private final SharedPreferences mPrefs;
+
+    public SyncCoalescer(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The locations one sync is to fetch, and how it got to them.
+     */
+    static class Plan {
+        // The location on screen first, or empty if the sync has nothing to do
+        final ArrayList<String> locations = new ArrayList<String>();
+        // Pending locations the sync's own extras didn't ask for
+        int merged;
+        // Locations left out for being fresh
+        int skipped;
+    }
+
+    /**
+     * Records that a trigger wants locationSetting synced.  Call before requesting the sync.
+     * Triggers run on the UI thread, so the write to disk is left to apply(); the preferences
+     * in memory change right away, which is all plan() reads.
+     */
+    public void onRequested(String locationSetting) {
+        synchronized (sLock) {
+            LinkedHashSet<String> pending = readPending();
+            pending.add(locationSetting);
+            mPrefs.edit()
+                    .putString(PREF_PENDING, join(pending))
+                    .putLong(PREF_REQUESTS, mPrefs.getLong(PREF_REQUESTS, 0) + 1)
+                    .apply();
+        }
+    }
+
+    /**
+     * Takes the pending locations and works out which locations a sync is to fetch.
+     *
+     * @param requested The locations the sync's extras ask for, the location on screen first.
+     * @param force Whether to fetch every location, however fresh.
+     */
+    public List<String> plan(List<String> requested, boolean force) {
+        synchronized (sLock) {
+            LinkedHashSet<String> pending = readPending();
+            HashMap<String, Long> lastSynced = new HashMap<String, Long>();
+            for (String location : requested) {
+                lastSynced.put(location, mPrefs.getLong(PREF_SYNCED_PREFIX + location, 0));
+            }
+            for (String location : pending) {
+                lastSynced.put(location, mPrefs.getLong(PREF_SYNCED_PREFIX + location, 0));
+            }
+            Plan plan = plan(requested, pending, lastSynced, force, System.currentTimeMillis());
+
+            mPrefs.edit()
+                    .remove(PREF_PENDING)
+                    .putLong(PREF_SYNCS, mPrefs.getLong(PREF_SYNCS, 0) + 1)
+                    .putLong(PREF_ABSORBED_SYNCS, mPrefs.getLong(PREF_ABSORBED_SYNCS, 0)
+                            + (plan.locations.isEmpty() ? 1 : 0))
+                    .putLong(PREF_SKIPPED_LOCATIONS,
+                            mPrefs.getLong(PREF_SKIPPED_LOCATIONS, 0) + plan.skipped)
+                    .putLong(PREF_MERGED_LOCATIONS,
+                            mPrefs.getLong(PREF_MERGED_LOCATIONS, 0) + plan.merged)
+                    .commit();
+            return plan.locations;
+        }
+    }
+
+    static Plan plan(List<String> requested, Collection<String> pending,
+                     Map<String, Long> lastSynced, boolean force, long nowMillis) {
+        Plan plan = new Plan();
+        LinkedHashSet<String> locations = new LinkedHashSet<String>(requested);
+        for (String location : pending) {
+            if (locations.add(location)) {
+                plan.merged++;
+            }
+        }
+
+        boolean anyStale = false;
+        for (String location : locations) {
+            Long synced = lastSynced.get(location);
+            boolean fresh = !force && synced != null
+                    && synced <= nowMillis && nowMillis - synced < FRESHNESS_WINDOW_MILLIS;
+            if (plan.locations.isEmpty()) {
+                plan.locations.add(location);
+            } else if (fresh) {
+                plan.skipped++;
+                continue;
+            } else {
+                plan.locations.add(location);
+            }
+            anyStale |= !fresh;
+        }
+        if (!anyStale) {
+            plan.skipped += plan.locations.size();
+            plan.locations.clear();
+        }
+        return plan;
+    }
+
+    /**
+     * Records that locationSetting synced successfully.
+     */
+    public void onSynced(String locationSetting, long nowMillis) {
+        synchronized (sLock) {
+            mPrefs.edit().putLong(PREF_SYNCED_PREFIX + locationSetting, nowMillis).commit();
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Sync coalescing:");
+        writer.println("  " + mPrefs.getLong(PREF_REQUESTS, 0) + " triggered, "
+                + mPrefs.getLong(PREF_SYNCS, 0) + " syncs run, "
+                + mPrefs.getLong(PREF_ABSORBED_SYNCS, 0) + " absorbed as redundant");
+        writer.println("  " + mPrefs.getLong(PREF_SKIPPED_LOCATIONS, 0) + " fresh locations skipped, "
+                + mPrefs.getLong(PREF_MERGED_LOCATIONS, 0) + " pending locations merged in");
+        String pending = mPrefs.getString(PREF_PENDING, "");
+        if (pending.length() > 0) {
+            writer.println("  pending: " + pending.trim().replace('\n', ' '));
+        }
+    }
+
+    private LinkedHashSet<String> readPending() {
+        LinkedHashSet<String> pending = new LinkedHashSet<String>();
+        for (String line : mPrefs.getString(PREF_PENDING, "").split("\n")) {
+            if (line.length() > 0) {
+                pending.add(line);
+            }
+        }
+        return pending;
+    }
+
+    private static String join(Collection<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+}
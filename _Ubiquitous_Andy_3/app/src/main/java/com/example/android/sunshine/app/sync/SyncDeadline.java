@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * The time one sync has left, and whether the framework has called it off.
+ *
+ * Every phase of the sync checks it before starting: connecting, each read off the socket (and
+ * so the streaming parse, which reads as it goes), and the provider's transaction, which rolls
+ * back if the deadline passes before it commits.  Cancelling also aborts the requests in
+ * flight, as a read blocked on a stalled socket never gets to check anything.
+ */
+public class SyncDeadline {
+
+    // The whole sync, every location included.  A healthy one takes a few seconds.
+    public static final long DEFAULT_BUDGET_MILLIS = 60 * 1000;
+
+    private final long mDeadline;
+    private volatile boolean mCancelled;
+    private final ArrayList<ForecastHttpClient.Response> mOpenResponses =
+            new ArrayList<ForecastHttpClient.Response>();
+
+    public SyncDeadline(long budgetMillis) {
+        mDeadline = SystemClock.elapsedRealtime() + budgetMillis;
+    }
+
+    /**
+     * @return the deadline on the SystemClock.elapsedRealtime() clock, which is what the
+     * provider is handed.
+     */
+    public long getElapsedRealtime() {
+        return mDeadline;
+    }
+
+    /**
+     * @return the time left, never less than 0.
+     */
+    public long getRemainingMillis() {
+        return Math.max(0, mDeadline - SystemClock.elapsedRealtime());
+    }
+
+    public boolean isExpired() {
+        return SystemClock.elapsedRealtime() >= mDeadline;
+    }
+
+    /**
+     * @return whether the framework cancelled the sync, as opposed to it running out of time.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return whether the sync should give up what it is doing.
+     */
+    public boolean shouldStop() {
+        return mCancelled || isExpired();
+    }
+
+    /**
+     * @throws SyncAbortedException if the sync should give up what it is doing.
+     */
+    public void check() throws SyncAbortedException {
+        if (mCancelled) {
+            throw new SyncAbortedException("Sync cancelled");
+        }
+        if (isExpired()) {
+            throw new SyncAbortedException("Sync deadline passed");
+        }
+    }
+
+    /**
+     * Marks the sync cancelled and aborts the requests in flight.  Safe to call from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        abort();
+    }
+
+    /**
+     * Aborts the requests in flight, so the threads blocked reading them get an exception now
+     * rather than when the read timeout runs out.
+     */
+    public void abort() {
+        ArrayList<ForecastHttpClient.Response> responses;
+        synchronized (mOpenResponses) {
+            responses = new ArrayList<ForecastHttpClient.Response>(mOpenResponses);
+            mOpenResponses.clear();
+        }
+        for (ForecastHttpClient.Response response : responses) {
+            response.abort();
+        }
+    }
+
+    void register(ForecastHttpClient.Response response) {
+        synchronized (mOpenResponses) {
+            mOpenResponses.add(response);
+        }
+    }
+
+    void unregister(ForecastHttpClient.Response response) {
+        synchronized (mOpenResponses) {
+            mOpenResponses.remove(response);
+        }
+    }
+
+    /**
+     * @return a stream that checks the deadline before every read of in.
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                check();
+                return super.read(buffer, offset, count);
+            }
+
+            @Override
+            public long skip(long byteCount) throws IOException {
+                check();
+                return super.skip(byteCount);
+            }
+        };
+    }
+
+    /**
+     * Thrown when the sync was cancelled or ran out of time.  It is an IOException so that it
+     * comes out of the streams and parsers the way a dropped connection would.
+     */
+    public static class SyncAbortedException extends InterruptedIOException {
+        public SyncAbortedException(String detailMessage) {
+            super(detailMessage);
+        }
+    }
+}
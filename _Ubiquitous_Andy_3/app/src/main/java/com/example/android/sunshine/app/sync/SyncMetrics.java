@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects how long each phase of one sync took, and writes them to the sync metrics table
+ * when the sync is done.  Fetches run in parallel, so recording is thread safe.
+ */
+public class SyncMetrics {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private final long mSyncTime = System.currentTimeMillis();
+    private final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+    private int mRowsChanged;
+
+    public synchronized void record(String phase, String locationSetting, long micros, long bytes,
+                                    int outcome) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_TIME, mSyncTime);
+        values.put(SyncMetricsEntry.COLUMN_PHASE, phase);
+        values.put(SyncMetricsEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(SyncMetricsEntry.COLUMN_VERSION_CODE, BuildConfig.VERSION_CODE);
+        values.put(SyncMetricsEntry.COLUMN_DURATION, micros);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, bytes);
+        values.put(SyncMetricsEntry.COLUMN_OUTCOME, outcome);
+        mRows.add(values);
+    }
+
+    /**
+     * Records the time since startNanos as a successful phase of the whole sync.
+     *
+     * @return now, as the start of the next phase.
+     */
+    public long recordSince(String phase, long startNanos) {
+        long now = System.nanoTime();
+        record(phase, null, (now - startNanos) / 1000, 0, SyncMetricsEntry.OUTCOME_OK);
+        return now;
+    }
+
+    /**
+     * Records the phases of one location's fetch.
+     */
+    void recordFetch(SunshineSyncAdapter.FetchResult result) {
+        String location = result.locationSetting;
+        if (result.httpCode != 0) {
+            record(SyncMetricsEntry.PHASE_CONNECT, location, result.connectMicros, 0, result.httpCode);
+            record(SyncMetricsEntry.PHASE_TIME_TO_FIRST_BYTE, location,
+                    result.timeToFirstByteMicros, 0, result.httpCode);
+            record(SyncMetricsEntry.PHASE_DOWNLOAD, location,
+                    result.downloadMicros, result.bytes, result.httpCode);
+        }
+        if (result.parseMicros > 0) {
+            record(SyncMetricsEntry.PHASE_PARSE, location, result.parseMicros, 0,
+                    result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID
+                            ? SyncMetricsEntry.OUTCOME_ERROR : SyncMetricsEntry.OUTCOME_OK);
+        }
+        record(SyncMetricsEntry.PHASE_FETCH, location, result.fetchMicros, result.bytes, result.status);
+    }
+
+    /**
+     * Records the phases the provider timed while applying the sync.
+     *
+     * @param phaseMicros The WeatherContract.EXTRA_PHASE_MICROS bundle, or null.
+     */
+    void recordProviderPhases(Bundle phaseMicros) {
+        if (phaseMicros == null) {
+            return;
+        }
+        for (String phase : phaseMicros.keySet()) {
+            record(phase, null, phaseMicros.getLong(phase), 0, SyncMetricsEntry.OUTCOME_OK);
+        }
+    }
+
+    /**
+     * Records how many weather rows the sync wrote.  Only SyncTelemetry reads it.
+     */
+    public synchronized void setRowsChanged(int rowsChanged) {
+        mRowsChanged = rowsChanged;
+    }
+
+    public synchronized int getRowsChanged() {
+        return mRowsChanged;
+    }
+
+    /**
+     * @return the total duration recorded so far under phase, in microseconds, or -1 if it
+     * wasn't recorded at all.
+     */
+    public synchronized long getMicros(String phase) {
+        return sum(phase, SyncMetricsEntry.COLUMN_DURATION);
+    }
+
+    /**
+     * @return the total bytes recorded so far under phase, or -1 if it wasn't recorded at all.
+     */
+    public synchronized long getBytes(String phase) {
+        return sum(phase, SyncMetricsEntry.COLUMN_BYTES);
+    }
+
+    private long sum(String phase, String column) {
+        long total = -1;
+        for (ContentValues values : mRows) {
+            if (phase.equals(values.getAsString(SyncMetricsEntry.COLUMN_PHASE))) {
+                total = Math.max(total, 0) + values.getAsLong(column);
+            }
+        }
+        return total;
+    }
+
+    public synchronized void flush(ContentResolver resolver) {
+        if (mRows.isEmpty()) {
+            return;
+        }
+        try {
+            resolver.bulkInsert(SyncMetricsEntry.CONTENT_URI,
+                    mRows.toArray(new ContentValues[mRows.size()]));
+        } catch (RuntimeException e) {
+            // Losing the numbers of one sync is no reason to fail it
+            Log.e(LOG_TAG, "Error saving sync metrics", e);
+        }
+        mRows.clear();
+    }
+
+    /**
+     * Prints the count, p50, p95 and max duration of every phase, per app version, along with
+     * how often each outcome came up.
+     */
+    public static void dump(ContentResolver resolver, PrintWriter writer) {
+        Cursor cursor = resolver.query(SyncMetricsEntry.CONTENT_URI,
+                new String[]{SyncMetricsEntry.COLUMN_VERSION_CODE,
+                        SyncMetricsEntry.COLUMN_PHASE,
+                        SyncMetricsEntry.COLUMN_DURATION,
+                        SyncMetricsEntry.COLUMN_BYTES,
+                        SyncMetricsEntry.COLUMN_OUTCOME},
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        // version -> phase -> stats, sorted so the output is stable
+        TreeMap<Integer, TreeMap<String, PhaseStats>> versions =
+                new TreeMap<Integer, TreeMap<String, PhaseStats>>();
+        try {
+            while (cursor.moveToNext()) {
+                int version = cursor.getInt(0);
+                TreeMap<String, PhaseStats> phases = versions.get(version);
+                if (phases == null) {
+                    phases = new TreeMap<String, PhaseStats>();
+                    versions.put(version, phases);
+                }
+                PhaseStats stats = phases.get(cursor.getString(1));
+                if (stats == null) {
+                    stats = new PhaseStats();
+                    phases.put(cursor.getString(1), stats);
+                }
+                stats.add(cursor.getLong(2), cursor.getLong(3), cursor.getInt(4));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        writer.println("Sync metrics (durations in ms):");
+        if (versions.isEmpty()) {
+            writer.println("  no syncs recorded");
+            return;
+        }
+        for (Map.Entry<Integer, TreeMap<String, PhaseStats>> version : versions.entrySet()) {
+            TreeMap<String, PhaseStats> phases = version.getValue();
+            PhaseStats total = phases.get(SyncMetricsEntry.PHASE_TOTAL);
+            writer.println(String.format(Locale.US, "  versionCode %d, %d syncs",
+                    version.getKey(), total == null ? 0 : total.mDurations.size()));
+            writer.println("    phase                  count      p50      p95      max   avg bytes  outcomes");
+            for (Map.Entry<String, PhaseStats> phase : phases.entrySet()) {
+                PhaseStats stats = phase.getValue();
+                Collections.sort(stats.mDurations);
+                int count = stats.mDurations.size();
+                writer.println(String.format(Locale.US, "    %-20s %7d %8.1f %8.1f %8.1f %11d  %s",
+                        phase.getKey(), count,
+                        stats.percentile(50) / 1000f, stats.percentile(95) / 1000f,
+                        stats.mDurations.get(count - 1) / 1000f,
+                        stats.mBytes / count, stats.mOutcomes));
+            }
+        }
+    }
+
+    private static class PhaseStats {
+        final ArrayList<Long> mDurations = new ArrayList<Long>();
+        // outcome -> count
+        final TreeMap<Integer, Integer> mOutcomes = new TreeMap<Integer, Integer>();
+        long mBytes;
+
+        void add(long duration, long bytes, int outcome) {
+            mDurations.add(duration);
+            mBytes += bytes;
+            Integer count = mOutcomes.get(outcome);
+            mOutcomes.put(outcome, count == null ? 1 : count + 1);
+        }
+
+        /**
+         * Nearest-rank percentile; mDurations must be sorted.
+         */
+        long percentile(int percent) {
+            int rank = (int) Math.ceil(percent / 100.0 * mDurations.size());
+            return mDurations.get(Math.max(0, rank - 1));
+        }
+    }
+}
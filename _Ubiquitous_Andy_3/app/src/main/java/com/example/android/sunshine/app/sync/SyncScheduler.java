@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Picks the period of the next periodic sync instead of always using SYNC_INTERVAL.
+ *
+ * The starting point is how much the last sync changed: a forecast that keeps moving is synced
+ * more often, one that comes back the same is left alone for longer.  That is then stretched
+ * when nothing is showing our data outside the app (no widget, no watch), and shortened when
+ * a sync is cheap because the device is charging on an unmetered network.  A failing location
+ * is never left on a stretched period, so it gets retried at the normal rate at worst.
+ *
+ * Each decision is kept in a short history for dump().
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    public static final int MIN_INTERVAL = 60 * 60;
+    public static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    // The fraction of stored rows a sync changed.  Every day brings one new day into a two week
+    // forecast, so anything around 1/14 is as calm as a forecast gets.
+    static final float CALM_CHANGE_FRACTION = 0.15f;
+    static final float VOLATILE_CHANGE_FRACTION = 0.5f;
+
+    static final int HISTORY_SIZE = 64;
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String PREF_ADAPTIVE_INTERVAL = "adaptive_interval";
+    private static final String PREF_INTERVAL = "interval";
+    private static final String PREF_HISTORY = "history";
+
+    private static final int SECONDS_PER_DAY = 60 * 60 * 24;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public SyncScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Everything one scheduling decision was based on, and what it came to.
+     */
+    static class Decision {
+        long timeMillis;
+        float changedFraction;
+        boolean failing;
+        boolean charging;
+        boolean unmetered;
+        boolean consumersActive;
+        int adaptiveInterval;
+        int interval;
+
+        String serialize() {
+            return timeMillis + "," + changedFraction + "," + failing + "," + charging + ","
+                    + unmetered + "," + consumersActive + "," + adaptiveInterval + "," + interval;
+        }
+
+        static Decision deserialize(String line) {
+            String[] fields = line.split(",");
+            if (fields.length != 8) {
+                return null;
+            }
+            try {
+                Decision decision = new Decision();
+                decision.timeMillis = Long.parseLong(fields[0]);
+                decision.changedFraction = Float.parseFloat(fields[1]);
+                decision.failing = Boolean.parseBoolean(fields[2]);
+                decision.charging = Boolean.parseBoolean(fields[3]);
+                decision.unmetered = Boolean.parseBoolean(fields[4]);
+                decision.consumersActive = Boolean.parseBoolean(fields[5]);
+                decision.adaptiveInterval = Integer.parseInt(fields[6]);
+                decision.interval = Integer.parseInt(fields[7]);
+                return decision;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Called at the end of every sync.  Works out the next period and reschedules the periodic
+     * sync if it differs from the current one.
+     *
+     * @param changedFraction The share of the synced rows that held new values, 0 to 1.
+     * @param failing Whether the location on screen failed to sync.
+     * @param watchActive Whether a watch is connected to show our data.
+     * @return the period now in effect, in seconds.
+     */
+    public int onSyncFinished(float changedFraction, boolean failing, boolean watchActive) {
+        Decision decision = new Decision();
+        decision.timeMillis = System.currentTimeMillis();
+        decision.changedFraction = changedFraction;
+        decision.failing = failing;
+        decision.charging = isCharging();
+        decision.unmetered = isUnmetered();
+        decision.consumersActive = watchActive || hasWidgets();
+        decide(decision, mPrefs.getInt(PREF_ADAPTIVE_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL));
+
+        int currentInterval = mPrefs.getInt(PREF_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        if (decision.interval != currentInterval) {
+            Log.d(LOG_TAG, "Sync period " + currentInterval + "s -> " + decision.interval + "s");
+            SunshineSyncAdapter.configurePeriodicSync(mContext, decision.interval, decision.interval / 3);
+        }
+
+        ArrayList<String> history = readHistory();
+        history.add(decision.serialize());
+        while (history.size() > HISTORY_SIZE) {
+            history.remove(0);
+        }
+        mPrefs.edit()
+                .putInt(PREF_ADAPTIVE_INTERVAL, decision.adaptiveInterval)
+                .putInt(PREF_INTERVAL, decision.interval)
+                .putString(PREF_HISTORY, join(history))
+                .commit();
+        return decision.interval;
+    }
+
+    /**
+     * Fills in the intervals of a decision from its signals.  The adaptive interval carries over
+     * from one sync to the next, so a forecast has to stay calm for a while before its syncs
+     * are spread out all the way; the device state is applied on top of it each time.
+     */
+    static void decide(Decision decision, int previousAdaptiveInterval) {
+        int adaptive;
+        if (decision.changedFraction >= VOLATILE_CHANGE_FRACTION) {
+            adaptive = previousAdaptiveInterval / 2;
+        } else if (decision.changedFraction <= CALM_CHANGE_FRACTION) {
+            adaptive = previousAdaptiveInterval * 3 / 2;
+        } else {
+            // Somewhere in between, so drift back towards the default
+            adaptive = (previousAdaptiveInterval + SunshineSyncAdapter.SYNC_INTERVAL) / 2;
+        }
+        adaptive = clamp(adaptive);
+
+        int interval = adaptive;
+        if (!decision.consumersActive) {
+            // Nobody sees the data until the app is opened
+            interval *= 2;
+        }
+        if (decision.charging && decision.unmetered) {
+            interval /= 2;
+        }
+        if (decision.failing) {
+            interval = Math.min(interval, SunshineSyncAdapter.SYNC_INTERVAL);
+        }
+
+        decision.adaptiveInterval = adaptive;
+        decision.interval = clamp(interval);
+    }
+
+    private static int clamp(int interval) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    public void dump(PrintWriter writer) {
+        ArrayList<Decision> decisions = new ArrayList<Decision>();
+        for (String line : readHistory()) {
+            Decision decision = Decision.deserialize(line);
+            if (decision != null) {
+                decisions.add(decision);
+            }
+        }
+
+        writer.println("Sync schedule:");
+        writer.println("  current period: "
+                + mPrefs.getInt(PREF_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL) + "s"
+                + ", adaptive: "
+                + mPrefs.getInt(PREF_ADAPTIVE_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL) + "s"
+                + ", fixed: " + SunshineSyncAdapter.SYNC_INTERVAL + "s");
+        if (decisions.isEmpty()) {
+            writer.println("  no syncs recorded");
+            return;
+        }
+
+        long intervalTotal = 0;
+        for (Decision decision : decisions) {
+            intervalTotal += decision.interval;
+        }
+        float scheduledPerDay = (float) SECONDS_PER_DAY * decisions.size() / intervalTotal;
+        float fixedPerDay = (float) SECONDS_PER_DAY / SunshineSyncAdapter.SYNC_INTERVAL;
+        long spanMillis = decisions.get(decisions.size() - 1).timeMillis - decisions.get(0).timeMillis;
+        writer.println(String.format(Locale.US,
+                "  %d syncs over %.1f hours, %.2f syncs/day scheduled vs %.2f fixed (%.2f saved)",
+                decisions.size(), spanMillis / 3600000f,
+                scheduledPerDay, fixedPerDay, fixedPerDay - scheduledPerDay));
+
+        writer.println("  time                changed failing charging unmetered consumers adaptive period");
+        for (Decision decision : decisions) {
+            writer.println(String.format(Locale.US, "  %-19s %7.2f %7b %8b %9b %9b %7ds %5ds",
+                    DateFormat.format("yyyy-MM-dd kk:mm:ss", decision.timeMillis),
+                    decision.changedFraction, decision.failing, decision.charging,
+                    decision.unmetered, decision.consumersActive,
+                    decision.adaptiveInterval, decision.interval));
+        }
+    }
+
+    private ArrayList<String> readHistory() {
+        ArrayList<String> history = new ArrayList<String>();
+        String stored = mPrefs.getString(PREF_HISTORY, "");
+        for (String line : stored.split("\n")) {
+            if (line.length() > 0) {
+                history.add(line);
+            }
+        }
+        return history;
+    }
+
+    private static String join(ArrayList<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private boolean isCharging() {
+        // A null receiver just reads the sticky broadcast
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected()
+                && !ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
+
+    private boolean hasWidgets() {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
+        return appWidgetManager.getAppWidgetIds(
+                new ComponentName(mContext, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                new ComponentName(mContext, DetailWidgetProvider.class)).length > 0;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rolls the metrics of each sync up into one compact summary a day, for users who opted in to
+ * sharing them, and sends the finished days to our collector.
+ *
+ * A day's summary holds log2 histograms of how long the syncs took, how many bytes they
+ * downloaded, how many weather rows they changed and what each fan-out target cost, and how
+ * many syncs ended in each LocationStatus.  Whatever the number of syncs, that is a few hundred
+ * bytes.  Finished days queue up in SharedPreferences, at most MAX_QUEUED_DAYS of them, and go
+ * out in one POST right after a forecast fetch succeeds, while the radio is still up; a device
+ * without a network, or one that has opted out, sends nothing.  Opting out drops what was
+ * collected.  The request looks like this:
+ *
+ * {"sdk":23,"version":1,"days":[{"day":2457378,"syncs":12,"duration_ms":[0,0,...],
+ *   "bytes":[...],"rows_changed":[...],"status":[11,1,0,0,0],
+ *   "fan_out_ms":{"widgets":[...],"muzei":[...],"notification":[...],"wear":[...]}}, ...]}
+ *
+ * Bucket i of a histogram counts the values from 2^(i-1) up to 2^i - 1, with bucket 0 holding
+ * the zeros, and trailing empty buckets left out.
+ */
+public class SyncTelemetry {
+    private static final String LOG_TAG = SyncTelemetry.class.getSimpleName();
+
+    // Enough for values up to 2^22 - 1: over an hour in milliseconds, or 4MB
+    static final int BUCKETS = 23;
+    // Two weeks of a device that never fetches successfully is as much as we keep
+    static final int MAX_QUEUED_DAYS = 14;
+
+    private static final String PREFS_NAME = "sync_telemetry";
+    private static final String PREF_CURRENT = "current";
+    private static final String PREF_QUEUE = "queue";
+    private static final String PREF_UPLOADED = "uploaded";
+    private static final String PREF_DROPPED = "dropped";
+
+    private static final String KEY_SDK = "sdk";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_DAYS = "days";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_SYNCS = "syncs";
+    private static final String KEY_DURATION = "duration_ms";
+    private static final String KEY_BYTES = "bytes";
+    private static final String KEY_ROWS_CHANGED = "rows_changed";
+    private static final String KEY_STATUS = "status";
+    private static final String KEY_FAN_OUT = "fan_out_ms";
+
+    // The fan-out phases, and the names they go by in a summary
+    private static final String[] FAN_OUT_PHASES = {
+            SyncMetricsEntry.PHASE_FAN_OUT_WIDGETS,
+            SyncMetricsEntry.PHASE_FAN_OUT_MUZEI,
+            SyncMetricsEntry.PHASE_FAN_OUT_NOTIFICATION,
+            SyncMetricsEntry.PHASE_FAN_OUT_WEAR,
+    };
+    private static final String[] FAN_OUT_KEYS = {"widgets", "muzei", "notification", "wear"};
+
+    // One per LocationStatus
+    private static final int STATUSES = 5;
+
+    // The sync adapter and the tests write the same preferences
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final ForecastHttpClient mClient;
+    private final URL mCollectorUrl;
+
+    public SyncTelemetry(Context context, ForecastHttpClient client) {
+        this(context, client, parseUrl(context.getString(R.string.telemetry_collector_url)));
+    }
+
+    /**
+     * @param collectorUrl Where summaries are sent, or null to keep them.  Tests pass a local
+     * StubHttpServer.
+     */
+    SyncTelemetry(Context context, ForecastHttpClient client, URL collectorUrl) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mClient = client;
+        mCollectorUrl = collectorUrl;
+    }
+
+    private static URL parseUrl(String url) {
+        if (url.length() == 0) {
+            return null;
+        }
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            Log.e(LOG_TAG, "Bad telemetry collector URL " + url, e);
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return prefs.getBoolean(mContext.getString(R.string.pref_enable_telemetry_key),
+                Boolean.parseBoolean(mContext.getString(R.string.pref_enable_telemetry_default)));
+    }
+
+    /**
+     * Counts a finished sync into today's summary.
+     *
+     * @param status The LocationStatus the sync ended with.
+     */
+    public void onSyncFinished(SyncMetrics metrics, int status) {
+        record(metrics, status, ForecastDelta.getTodayJulianDay());
+    }
+
+    void record(SyncMetrics metrics, int status, int julianDay) {
+        synchronized (sLock) {
+            if (!isEnabled()) {
+                if (mPrefs.contains(PREF_CURRENT) || mPrefs.contains(PREF_QUEUE)) {
+                    mPrefs.edit().remove(PREF_CURRENT).remove(PREF_QUEUE).commit();
+                }
+                return;
+            }
+            try {
+                List<JSONObject> queue = readQueue();
+                JSONObject day = rollOver(queue, julianDay);
+                add(day, metrics, status);
+                write(day, queue);
+            } catch (JSONException e) {
+                // Only we ever wrote it, so start over rather than keep failing
+                Log.e(LOG_TAG, "Dropping unreadable sync telemetry", e);
+                mPrefs.edit().remove(PREF_CURRENT).remove(PREF_QUEUE).commit();
+            }
+        }
+    }
+
+    /**
+     * Sends the finished days, if there are any and the user opted in.  The sync calls this
+     * after a successful fetch, so it rides on a connection that was just made.
+     */
+    public void uploadIfQueued(SyncDeadline deadline) {
+        if (mCollectorUrl == null || !isEnabled() || !Utility.isNetworkAvailable(mContext)) {
+            return;
+        }
+        upload(deadline, ForecastDelta.getTodayJulianDay());
+    }
+
+    /**
+     * @return the number of queued days sent, or -1 if the collector didn't take them.
+     */
+    int upload(SyncDeadline deadline, int julianDay) {
+        byte[] body;
+        int lastSentDay;
+        synchronized (sLock) {
+            try {
+                List<JSONObject> queue = readQueue();
+                write(rollOver(queue, julianDay), queue);
+                if (queue.isEmpty()) {
+                    return 0;
+                }
+                JSONObject request = new JSONObject();
+                request.put(KEY_SDK, Build.VERSION.SDK_INT);
+                request.put(KEY_VERSION, BuildConfig.VERSION_CODE);
+                request.put(KEY_DAYS, new JSONArray(queue));
+                body = request.toString().getBytes("UTF-8");
+                lastSentDay = queue.get(queue.size() - 1).getInt(KEY_DAY);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Dropping unreadable sync telemetry", e);
+                mPrefs.edit().remove(PREF_CURRENT).remove(PREF_QUEUE).commit();
+                return -1;
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        // Not under the lock, so a sync finishing meanwhile isn't held up by the network
+        int code;
+        ForecastHttpClient.Response response = null;
+        try {
+            response = mClient.post(mCollectorUrl, "application/json", body, deadline);
+            code = response.getCode();
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Couldn't send sync telemetry: " + e);
+            return -1;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        if (code < 200 || code >= 300) {
+            Log.d(LOG_TAG, "Collector answered " + code + ", keeping sync telemetry");
+            return -1;
+        }
+
+        int sent = 0;
+        synchronized (sLock) {
+            try {
+                // While we were sending, days could only have been queued after the ones sent,
+                // or the oldest of them dropped
+                List<JSONObject> queue = readQueue();
+                while (!queue.isEmpty() && queue.get(0).getInt(KEY_DAY) <= lastSentDay) {
+                    queue.remove(0);
+                    sent++;
+                }
+                mPrefs.edit()
+                        .putString(PREF_QUEUE, new JSONArray(queue).toString())
+                        .putLong(PREF_UPLOADED, mPrefs.getLong(PREF_UPLOADED, 0) + sent)
+                        .commit();
+            } catch (JSONException e) {
+                mPrefs.edit().remove(PREF_QUEUE).commit();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Queues the stored day if it is over, dropping the oldest days past MAX_QUEUED_DAYS.
+     *
+     * @return the summary of julianDay to add to.
+     */
+    private JSONObject rollOver(List<JSONObject> queue, int julianDay) throws JSONException {
+        String current = mPrefs.getString(PREF_CURRENT, null);
+        if (current != null) {
+            JSONObject day = new JSONObject(current);
+            if (day.getInt(KEY_DAY) == julianDay) {
+                return day;
+            }
+            queue.add(day);
+        }
+        int dropped = 0;
+        while (queue.size() > MAX_QUEUED_DAYS) {
+            queue.remove(0);
+            dropped++;
+        }
+        if (dropped > 0) {
+            mPrefs.edit().putLong(PREF_DROPPED, mPrefs.getLong(PREF_DROPPED, 0) + dropped).commit();
+        }
+        return newDay(julianDay);
+    }
+
+    static JSONObject newDay(int julianDay) throws JSONException {
+        JSONObject day = new JSONObject();
+        day.put(KEY_DAY, julianDay);
+        day.put(KEY_SYNCS, 0);
+        day.put(KEY_DURATION, new JSONArray());
+        day.put(KEY_BYTES, new JSONArray());
+        day.put(KEY_ROWS_CHANGED, new JSONArray());
+        day.put(KEY_STATUS, new JSONArray());
+        JSONObject fanOut = new JSONObject();
+        for (String key : FAN_OUT_KEYS) {
+            fanOut.put(key, new JSONArray());
+        }
+        day.put(KEY_FAN_OUT, fanOut);
+        return day;
+    }
+
+    /**
+     * Counts one sync into a day's summary.
+     */
+    static void add(JSONObject day, SyncMetrics metrics, int status) throws JSONException {
+        day.put(KEY_SYNCS, day.getInt(KEY_SYNCS) + 1);
+        long totalMicros = metrics.getMicros(SyncMetricsEntry.PHASE_TOTAL);
+        if (totalMicros >= 0) {
+            increment(day.getJSONArray(KEY_DURATION), bucket(totalMicros / 1000));
+        }
+        increment(day.getJSONArray(KEY_BYTES),
+                bucket(Math.max(0, metrics.getBytes(SyncMetricsEntry.PHASE_FETCH))));
+        increment(day.getJSONArray(KEY_ROWS_CHANGED), bucket(metrics.getRowsChanged()));
+        if (status >= 0 && status < STATUSES) {
+            increment(day.getJSONArray(KEY_STATUS), status);
+        }
+        // A target that wasn't published to this sync isn't counted, so its histogram says
+        // what publishing costs when it happens
+        JSONObject fanOut = day.getJSONObject(KEY_FAN_OUT);
+        for (int i = 0; i < FAN_OUT_PHASES.length; i++) {
+            long micros = metrics.getMicros(FAN_OUT_PHASES[i]);
+            if (micros >= 0) {
+                increment(fanOut.getJSONArray(FAN_OUT_KEYS[i]), bucket(micros / 1000));
+            }
+        }
+    }
+
+    /**
+     * @return the log2 bucket of value: 0 for 0, then i for 2^(i-1) up to 2^i - 1.
+     */
+    static int bucket(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private static void increment(JSONArray counts, int index) throws JSONException {
+        // Grown as needed, which leaves the trailing empty buckets out
+        while (counts.length() <= index) {
+            counts.put(0);
+        }
+        counts.put(index, counts.getLong(index) + 1);
+    }
+
+    private List<JSONObject> readQueue() throws JSONException {
+        ArrayList<JSONObject> queue = new ArrayList<JSONObject>();
+        JSONArray days = new JSONArray(mPrefs.getString(PREF_QUEUE, "[]"));
+        for (int i = 0; i < days.length(); i++) {
+            queue.add(days.getJSONObject(i));
+        }
+        return queue;
+    }
+
+    private void write(JSONObject day, List<JSONObject> queue) {
+        mPrefs.edit()
+                .putString(PREF_CURRENT, day.toString())
+                .putString(PREF_QUEUE, new JSONArray(queue).toString())
+                .commit();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Sync telemetry:");
+        int queued;
+        synchronized (sLock) {
+            try {
+                queued = readQueue().size();
+            } catch (JSONException e) {
+                queued = -1;
+            }
+        }
+        writer.println(String.format(Locale.US,
+                "  %s, collector %s, %d days queued, %d sent, %d dropped unsent",
+                isEnabled() ? "enabled" : "disabled", mCollectorUrl, queued,
+                mPrefs.getLong(PREF_UPLOADED, 0), mPrefs.getLong(PREF_DROPPED, 0)));
+        String current = mPrefs.getString(PREF_CURRENT, null);
+        if (current != null) {
+            writer.println("  today: " + current);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends today's weather to the watch face from the sync, on a GoogleApiClient of its own.
+ *
+ * The client is connected, blocking, the first time a sync needs it and disconnected when the
+ * sync is done, so it works whether or not the app's UI has ever run.  A hash of the last
+ * payload each watch accepted is kept in SharedPreferences, keyed by its node id, and a payload
+ * every connected watch has already is not sent again: every DataItem put wakes the watches'
+ * radios, changed or not.  A publish that left a watch out, or didn't reach it, is remembered
+ * until one does, so the next sync can send it even if the forecast hasn't changed by then.
+ *
+ * The connected watches are looked up at most every NODE_CHECK_INTERVAL_MILLIS, as a lookup
+ * means connecting, which the scheduler would otherwise pay for on every sync.  A watch paired
+ * in between is found at the next lookup, which marks it as missing the weather.
+ */
+public class WearPublisher {
+    private static final String LOG_TAG = WearPublisher.class.getSimpleName();
+
+    // These must match SunshineWatchFaceService in the wear module
+    static final String WEATHER_DATA_PATH = "/WEATHER_DATA_PATH";
+    static final String WEATHER_ID = "WEATHER_ID";
+    static final String WEATHER_HIGH = "WEATHER_HIGH";
+    static final String WEATHER_LOW = "WEATHER_LOW";
+    static final String WEATHER_IS_METRIC = "WEATHER_IS_METRIC";
+
+    private static final long TIMEOUT_SECONDS = 5;
+    static final long NODE_CHECK_INTERVAL_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final String PREFS_NAME = "wear_publisher";
+    private static final String KEY_HASH_PREFIX = "hash:";
+    private static final String KEY_NODES = "nodes";
+    private static final String KEY_NODES_CHECKED = "nodes_checked";
+    private static final String KEY_UNSENT = "unsent";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final GoogleApiClient mClient;
+
+    public WearPublisher(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mClient = new GoogleApiClient.Builder(mContext)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    /**
+     * Puts today's weather from the snapshot in the watches' DataItem, unless that is what
+     * every connected watch already has.  Blocks for up to a few seconds each on connecting,
+     * looking up the watches and sending.
+     *
+     * @return whether anything was sent.
+     */
+    public boolean publish(ForecastSnapshot snapshot) {
+        ForecastSnapshot.Day today = snapshot.getToday();
+        if (today == null) {
+            return false;
+        }
+        boolean isMetric = Utility.isMetric(mContext);
+        double high = today.high;
+        double low = today.low;
+        if (!isMetric) {
+            high = (high * 1.8) + 32;
+            low = (low * 1.8) + 32;
+        }
+
+        int hash = getPayloadHash(today.weatherId, high, low, isMetric);
+        List<String> nodes = getNodes();
+        if (nodes == null) {
+            markUnsent();
+            return false;
+        }
+        if (nodes.isEmpty() || haveHash(nodes, hash)) {
+            Log.d(LOG_TAG, nodes.isEmpty() ? "No watch connected, not sending"
+                    : "Watches already have this weather, not sending");
+            mPrefs.edit().remove(KEY_UNSENT).apply();
+            return false;
+        }
+        if (!connect()) {
+            markUnsent();
+            return false;
+        }
+
+        PutDataMapRequest dataMap = PutDataMapRequest.create(WEATHER_DATA_PATH);
+        dataMap.getDataMap().putDouble(WEATHER_HIGH, high);
+        dataMap.getDataMap().putDouble(WEATHER_LOW, low);
+        dataMap.getDataMap().putLong(WEATHER_ID, today.weatherId);
+        dataMap.getDataMap().putBoolean(WEATHER_IS_METRIC, isMetric);
+        DataApi.DataItemResult result = Wearable.DataApi
+                .putDataItem(mClient, dataMap.asPutDataRequest())
+                .await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Status status = result.getStatus();
+        if (!status.isSuccess()) {
+            Log.d(LOG_TAG, "Cannot send weather information, status code: "
+                    + status.getStatusCode());
+            markUnsent();
+            return false;
+        }
+        Log.d(LOG_TAG, "Weather information sent successfully " + result.getDataItem().getUri());
+        SharedPreferences.Editor editor = mPrefs.edit().remove(KEY_UNSENT);
+        for (String node : nodes) {
+            editor.putInt(KEY_HASH_PREFIX + node, hash);
+        }
+        editor.commit();
+        return true;
+    }
+
+    /**
+     * Records that a publish left the watch out, so that hasUnsent() tells the next sync.
+     */
+    public void markUnsent() {
+        mPrefs.edit().putBoolean(KEY_UNSENT, true).apply();
+    }
+
+    /**
+     * @return whether the last publish left the watch out or didn't reach it.
+     */
+    public boolean hasUnsent() {
+        return mPrefs.getBoolean(KEY_UNSENT, false);
+    }
+
+    /**
+     * @return whether a watch is connected, which the scheduler counts as someone looking at
+     * our data.  Only connects if the watches haven't been looked up for a while.
+     */
+    public boolean isWatchConnected() {
+        List<String> nodes = getNodes();
+        return nodes != null && !nodes.isEmpty();
+    }
+
+    /**
+     * @return the node ids of the connected watches, as last looked up if that was recently,
+     * or null if they couldn't be looked up.
+     */
+    private List<String> getNodes() {
+        long checked = mPrefs.getLong(KEY_NODES_CHECKED, 0);
+        long now = System.currentTimeMillis();
+        if (checked <= now && now - checked < NODE_CHECK_INTERVAL_MILLIS) {
+            return split(mPrefs.getString(KEY_NODES, ""));
+        }
+        if (!connect()) {
+            return null;
+        }
+        NodeApi.GetConnectedNodesResult result = Wearable.NodeApi.getConnectedNodes(mClient)
+                .await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.getStatus().isSuccess()) {
+            return null;
+        }
+        ArrayList<String> nodes = new ArrayList<String>();
+        for (Node node : result.getNodes()) {
+            nodes.add(node.getId());
+        }
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putString(KEY_NODES, TextUtils.join("\n", nodes))
+                .putLong(KEY_NODES_CHECKED, now);
+        if (!nodes.isEmpty() && !haveHash(nodes, null)) {
+            // A watch paired since the last send, which the next sync sends the weather to
+            editor.putBoolean(KEY_UNSENT, true);
+        }
+        editor.apply();
+        return nodes;
+    }
+
+    /**
+     * @return whether every one of nodes was sent the payload with the given hash, or any
+     * payload at all if hash is null.
+     */
+    private boolean haveHash(List<String> nodes, Integer hash) {
+        for (String node : nodes) {
+            String key = KEY_HASH_PREFIX + node;
+            if (!mPrefs.contains(key) || (hash != null && mPrefs.getInt(key, 0) != hash)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> split(String joined) {
+        ArrayList<String> nodes = new ArrayList<String>();
+        for (String node : joined.split("\n")) {
+            if (node.length() > 0) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Ends the connection made during a sync.  The next publish() or isWatchConnected()
+     * connects again.
+     */
+    public void disconnect() {
+        if (mClient.isConnected() || mClient.isConnecting()) {
+            mClient.disconnect();
+        }
+    }
+
+    private boolean connect() {
+        if (mClient.isConnected()) {
+            return true;
+        }
+        ConnectionResult result = mClient.blockingConnect(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.isSuccess()) {
+            Log.d(LOG_TAG, "Cannot connect to the wearable API: " + result);
+            return false;
+        }
+        return true;
+    }
+
+    static int getPayloadHash(long weatherId, double high, double low, boolean isMetric) {
+        return Arrays.hashCode(new Object[]{weatherId, high, low, isMetric});
+    }
+}